@@ -3,8 +3,12 @@ package entity;
 /**
  * Containing the request information. The resource that is begin requested. The
  * transaction making the request. The request type. The request site name. The
- * request value (for write request). The field remains null if that fields is
- * not necessary in that request. All fields is final and immutable.
+ * request value (for write request, the priority for begin, the definition
+ * for define, the arguments for call, or the last resource for scan, the
+ * resource being the first). For define and call the resource
+ * is the name of the procedure. The field remains null if that fields is
+ * not necessary in that request. The time stamps are 0 if not necessary. All
+ * fields is final and immutable.
  * 
  * @author jinglun
  * 
@@ -20,6 +24,18 @@ public class Request {
 
     public final String site;
 
+    /**
+     * The begin time stamp of the transaction for a read only read, or the
+     * commit time stamp for a commit.
+     */
+    public final int timestamp;
+
+    /**
+     * For a commit, the oldest begin time stamp of the running read only
+     * transactions. Older versions are not needed by any reader.
+     */
+    public final int watermark;
+
     /**
      * An immutable request object
      * 
@@ -36,6 +52,8 @@ public class Request {
         this.requestType = requestType;
         this.value = value;
         this.site = null;
+        this.timestamp = 0;
+        this.watermark = 0;
     }
 
     /**
@@ -51,8 +69,89 @@ public class Request {
         this.requestType = requestType;
         this.value = null;
         this.site = site;
+        this.timestamp = 0;
+        this.watermark = 0;
     }
     
+    /**
+     * A constructor of migrate request, move the copy of the resource from the
+     * site to the target site.
+     * 
+     * @param resource
+     * @param requestType
+     * @param site
+     *            the site the copy is moved from
+     * @param target
+     *            the site the copy is moved to, kept in value
+     */
+    public Request(String resource, RequestType requestType, String site,
+            String target) {
+        super();
+        this.resource = resource;
+        this.transaction = null;
+        this.requestType = requestType;
+        this.value = target;
+        this.site = site;
+        this.timestamp = 0;
+        this.watermark = 0;
+    }
+
+    /**
+     * A constructor of read only read request
+     * 
+     * @param resource
+     * @param transaction
+     * @param requestType
+     * @param timestamp
+     *            begin time stamp of the read only transaction
+     */
+    public Request(String resource, String transaction,
+            RequestType requestType, int timestamp) {
+        super();
+        this.resource = resource;
+        this.transaction = transaction;
+        this.requestType = requestType;
+        this.value = null;
+        this.site = null;
+        this.timestamp = timestamp;
+        this.watermark = 0;
+    }
+
+    /**
+     * A constructor of commit request
+     * 
+     * @param transaction
+     * @param requestType
+     * @param timestamp
+     *            commit time stamp of the transaction
+     * @param watermark
+     *            oldest begin time stamp of running read only transactions,
+     *            Integer.MAX_VALUE if there is none
+     */
+    public Request(String transaction, RequestType requestType,
+            int timestamp, int watermark) {
+        super();
+        this.resource = null;
+        this.transaction = transaction;
+        this.requestType = requestType;
+        this.value = null;
+        this.site = null;
+        this.timestamp = timestamp;
+        this.watermark = watermark;
+    }
+
+    /**
+     * The value of a write request as a number. Values are stored as long on
+     * the sites.
+     * 
+     * @return the value parsed
+     * @throws NumberFormatException
+     *             if the value is not a long
+     */
+    public long longValue() {
+        return Long.parseLong(this.value);
+    }
+
     //TODO builder
 
     @Override
@@ -68,6 +167,10 @@ public class Request {
         buffer.append(this.value);
         buffer.append(", site: ");
         buffer.append(this.site);
+        if (this.timestamp != 0) {
+            buffer.append(", timestamp: ");
+            buffer.append(this.timestamp);
+        }
         return buffer.toString();
     }
 }
@@ -0,0 +1,225 @@
+package entity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of {@link Request}, written to and read from a
+ * ByteBuffer directly. <br>
+ * <br>
+ * Request: [type ordinal][field flags][fields present...] <br>
+ * <br>
+ * Numbers are varints, 7 bits per byte, low bits first. Names of one letter
+ * followed by a number, like "x13" or "t2", are written as the letter and a
+ * varint of the number. Other strings are written as a zero byte, a varint
+ * length and the UTF-8 bytes. A value that is a long is written as a zigzag
+ * varint. <br>
+ * <br>
+ * Encoding throws BufferOverflowException when the buffer is too small, the
+ * position of the buffer is undefined then.
+ * 
+ */
+public final class RequestCodec {
+
+    private static final int RESOURCE = 1;
+    private static final int TRANSACTION = 1 << 1;
+    private static final int VALUE = 1 << 2;
+    private static final int NUMERIC_VALUE = 1 << 3;
+    private static final int SITE = 1 << 4;
+    private static final int TIMESTAMP = 1 << 5;
+    private static final int WATERMARK = 1 << 6;
+
+    private static final RequestType[] REQUEST_TYPES = RequestType.values();
+
+    private RequestCodec() {
+    }
+
+    /**
+     * Write the request at the position of the buffer
+     * 
+     * @param request
+     * @param out
+     */
+    public static void encode(Request request, ByteBuffer out) {
+        boolean numeric = isLong(request.value);
+        int flags = (request.resource != null ? RESOURCE : 0)
+                | (request.transaction != null ? TRANSACTION : 0)
+                | (request.value != null ? VALUE : 0)
+                | (numeric ? NUMERIC_VALUE : 0)
+                | (request.site != null ? SITE : 0)
+                | (request.timestamp != 0 ? TIMESTAMP : 0)
+                | (request.watermark != 0 ? WATERMARK : 0);
+        out.put((byte) request.requestType.ordinal());
+        out.put((byte) flags);
+        if (request.resource != null)
+            writeName(request.resource, out);
+        if (request.transaction != null)
+            writeName(request.transaction, out);
+        if (numeric)
+            writeVarLong(zigzag(Long.parseLong(request.value)), out);
+        else if (request.value != null)
+            writeName(request.value, out);
+        if (request.site != null)
+            writeName(request.site, out);
+        if (request.timestamp != 0)
+            writeVarLong(request.timestamp & 0xFFFFFFFFL, out);
+        if (request.watermark != 0)
+            writeVarLong(request.watermark & 0xFFFFFFFFL, out);
+    }
+
+    /**
+     * Read a request from the position of the buffer
+     * 
+     * @param in
+     * @return the request
+     */
+    public static Request decode(ByteBuffer in) {
+        RequestType type = REQUEST_TYPES[in.get()];
+        int flags = in.get();
+        String resource = (flags & RESOURCE) != 0 ? readName(in) : null;
+        String transaction = (flags & TRANSACTION) != 0 ? readName(in) : null;
+        String value = null;
+        if ((flags & NUMERIC_VALUE) != 0)
+            value = String.valueOf(unzigzag(readVarLong(in)));
+        else if ((flags & VALUE) != 0)
+            value = readName(in);
+        String site = (flags & SITE) != 0 ? readName(in) : null;
+        int timestamp = (flags & TIMESTAMP) != 0 ? (int) readVarLong(in) : 0;
+        int watermark = (flags & WATERMARK) != 0 ? (int) readVarLong(in) : 0;
+        return build(resource, transaction, type, value, site, timestamp,
+                watermark);
+    }
+
+    /**
+     * Build a request from its fields, with the constructor matching them
+     */
+    private static Request build(String resource, String transaction,
+            RequestType type, String value, String site, int timestamp,
+            int watermark) {
+        if (watermark != 0 || (timestamp != 0 && resource == null))
+            return new Request(transaction, type, timestamp, watermark);
+        if (timestamp != 0)
+            return new Request(resource, transaction, type, timestamp);
+        if (site != null && resource != null)
+            return new Request(resource, type, site, value);
+        if (site != null || transaction == null && resource == null)
+            return new Request(type, site);
+        return new Request(resource, transaction, type, value);
+    }
+
+    /**
+     * Write a name, compact if it is one letter and a number
+     */
+    public static void writeName(String name, ByteBuffer out) {
+        long number = compactNumber(name);
+        if (number < 0) {
+            writeString(name, out);
+        } else {
+            out.put((byte) name.charAt(0));
+            writeVarLong(number, out);
+        }
+    }
+
+    public static String readName(ByteBuffer in) {
+        byte letter = in.get();
+        if (letter == 0)
+            return readStringBody(in);
+        return (char) letter + String.valueOf(readVarLong(in));
+    }
+
+    /**
+     * The number of a name like "x13", -1 if the name is not a lower case
+     * letter followed by a number without leading zero
+     */
+    private static long compactNumber(String name) {
+        int length = name.length();
+        if (length < 2 || length > 19)
+            return -1;
+        char letter = name.charAt(0);
+        if (letter < 'a' || letter > 'z')
+            return -1;
+        if (name.charAt(1) == '0' && length > 2)
+            return -1;
+        long number = 0;
+        for (int i = 1; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    public static void writeString(String text, ByteBuffer out) {
+        out.put((byte) 0);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length, out);
+        out.put(bytes);
+    }
+
+    public static String readString(ByteBuffer in) {
+        if (in.get() != 0)
+            throw new IllegalArgumentException("not a string");
+        return readStringBody(in);
+    }
+
+    private static String readStringBody(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String result;
+        if (in.hasArray()) {
+            result = new String(in.array(), in.arrayOffset() + in.position(),
+                    length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * true if the text is a long of at most 18 digits written in decimal, as
+     * the value of a write
+     */
+    private static boolean isLong(String text) {
+        if (text == null || text.isEmpty())
+            return false;
+        int i = text.charAt(0) == '-' ? 1 : 0;
+        // at most 18 digits, always fits in a long
+        if (i == text.length() || text.length() - i > 18
+                || (text.charAt(i) == '0' && text.length() > i + 1))
+            return false;
+        for (; i < text.length(); i++)
+            if (text.charAt(i) < '0' || text.charAt(i) > '9')
+                return false;
+        return !text.equals("-0");
+    }
+
+    public static void writeVarLong(long value, ByteBuffer out) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
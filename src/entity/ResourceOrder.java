@@ -0,0 +1,77 @@
+package entity;
+
+import java.util.Comparator;
+
+/**
+ * Order of the resource names by their letter, then their number, i.e. x2
+ * before x10 before y1. Names that are not a letter followed by a number, see
+ * {@link #isValid(String)}, come after the others in string order, so the
+ * order is total and only equal names compare as 0.
+ * 
+ */
+public class ResourceOrder implements Comparator<String> {
+
+    public static final ResourceOrder INSTANCE = new ResourceOrder();
+
+    private ResourceOrder() {
+    }
+
+    @Override
+    public int compare(String o1, String o2) {
+        long n1 = number(o1);
+        long n2 = number(o2);
+        if (n1 < 0 || n2 < 0) {
+            if (n1 >= 0)
+                return -1;
+            if (n2 >= 0)
+                return 1;
+            return o1.compareTo(o2);
+        }
+        if (o1.charAt(0) != o2.charAt(0))
+            return o1.charAt(0) < o2.charAt(0) ? -1 : 1;
+        if (n1 != n2)
+            return n1 < n2 ? -1 : 1;
+        // the same number written with leading zeros
+        return o1.compareTo(o2);
+    }
+
+    /**
+     * @param name
+     * @return the number of a name that is a letter followed by a number, -1
+     *         otherwise
+     */
+    private static long number(String name) {
+        int length = name.length();
+        if (length < 2 || length > 10 || name.charAt(0) < 'a'
+                || name.charAt(0) > 'z')
+            return -1;
+        long result = 0;
+        for (int i = 1; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * @param name
+     * @return true if the name is a letter followed by a number, so it can be
+     *         ordered by its number
+     */
+    public static boolean isValid(String name) {
+        return name != null && number(name) >= 0;
+    }
+
+    /**
+     * @param resource
+     * @param low
+     * @param high
+     * @return true if the resource is between low and high, both included
+     */
+    public static boolean between(String resource, String low, String high) {
+        return INSTANCE.compare(low, resource) <= 0
+                && INSTANCE.compare(resource, high) <= 0;
+    }
+}
@@ -0,0 +1,38 @@
+package entity;
+
+/**
+ * The result of one {@link Request}. A request gets its response when it is
+ * finally handled, a request put in the waiting list gets it when it is
+ * retried successfully or its transaction is aborted. All fields is final and
+ * immutable.
+ * 
+ */
+public class Response {
+    public final Request request;
+
+    public final ResponseType responseType;
+
+    /**
+     * the value read, the dump, the abort reason or the error message. null if
+     * there is nothing to tell.
+     */
+    public final String value;
+
+    public Response(Request request, ResponseType responseType, String value) {
+        super();
+        this.request = request;
+        this.responseType = responseType;
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append(this.responseType);
+        if (this.value != null) {
+            buffer.append(": ");
+            buffer.append(this.value);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package entity;
+
+/**
+ * The outcome of a request handled by the transaction manager. <br>
+ * VALUE: a read, the value is the value read <br>
+ * ACK: a write, begin, dump, fail, recover or migrate is done, the value of a
+ * dump is the dump <br>
+ * COMMITTED: the transaction of an end request is committed <br>
+ * ABORTED: the transaction of the request is aborted, the value is the reason
+ * <br>
+ * ERROR: the request is rejected, the value is the error message <br>
+ * UNKNOWN: the transaction of an end request is committed, but a site holding
+ * the only copy of some resources it wrote could not tell if it applied the
+ * commit, the value names them
+ * 
+ */
+public enum ResponseType {
+    VALUE, ACK, COMMITTED, ABORTED, ERROR, UNKNOWN
+}
@@ -0,0 +1,181 @@
+package mainserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import entity.Request;
+import entity.RequestType;
+
+/**
+ * Parser of the instruction language into type of {@link Request}. One line
+ * contains instructions separated by ";". Used by the console of
+ * {@link MainServer} and by {@link NetworkServer}.
+ * 
+ * @author jinglun
+ * 
+ */
+public class InstructionParser {
+
+    private static final Pattern DEFINE = Pattern
+            .compile("define\\((\\w+)((?:,\\w+)*)\\):(.+)");
+
+    /**
+     * separators of the words of an instruction, a "-" before a digit is the
+     * sign of a number and not a separator
+     */
+    private static final Pattern SEPARATOR = Pattern
+            .compile("(?:[^\\w|\\s-]|-(?!\\d))+");
+
+    /**
+     * Parse one line of instructions
+     * 
+     * @param line
+     * @return the requests in the order of the instructions
+     * @throws IOException
+     *             if some instruction is not supported, no request is
+     *             returned in that case
+     */
+    public List<Request> parseLine(String line) throws IOException {
+        // a definition takes the whole line, its statements contain ";"
+        if (form(line).startsWith("define"))
+            return Collections.singletonList(parseDefine(line));
+        String[] instructions = line.trim().split(";");
+        List<Request> requests = new ArrayList<Request>(instructions.length);
+        for (String str : instructions) {
+            String[] words = SEPARATOR.split(str);
+            requests.add(parse(words));
+        }
+        return requests;
+    }
+
+    /**
+     * Construct request from String[] which contains one single instruction
+     * 
+     * @param words
+     * @return
+     * @throws IOException
+     */
+    Request parse(String[] words) throws IOException {
+
+        if (form(words[0]).equals("begin") && words.length == 3) {
+            // begin(T1, priority)
+            if (!form(words[2]).matches("-?\\d{1,9}"))
+                throw new IOException("priority of \"begin\" must be an integer");
+            return new Request(null, form(words[1]), RequestType.BEGIN,
+                    form(words[2]));
+        }
+        if (validWordLength(words, "begin", 2)) {
+            return new Request(null, form(words[1]), RequestType.BEGIN, null);
+        }
+        if (validWordLength(words, "beginro", 2)) {
+            return new Request(null, form(words[1]), RequestType.BEGINRO, null);
+        }
+        if (validWordLength(words, "w", 4)) {
+            if (!form(words[3]).matches("-?\\d{1,18}"))
+                throw new IOException("value of \"W\" must be an integer");
+            return new Request(form(words[2]), form(words[1]),
+                    RequestType.WRITE, form(words[3]));
+        }
+        if (validWordLength(words, "r", 3)) {
+            return new Request(form(words[2]), form(words[1]),
+                    RequestType.READ, null);
+        }
+        if (validWordLength(words, "scan", 4)) {
+            return new Request(form(words[2]), form(words[1]),
+                    RequestType.SCAN, form(words[3]));
+        }
+        if (validWordLength(words, "fail", 2)) {
+            return new Request(RequestType.FAIL, form(words[1]));
+        }
+        if (validWordLength(words, "recover", 2)) {
+            return new Request(RequestType.RECOVER, form(words[1]));
+        }
+        if (form(words[0]).equals("dump")) {
+            switch (words.length) {
+            case 1:
+                return new Request(RequestType.DUMP, null);
+            case 2:
+                if (form(words[1]).matches("x.*")) { // dump resource
+                    return new Request(form(words[1]), null, RequestType.DUMP,
+                            null);
+                } else { // dump site
+                    return new Request(RequestType.DUMP, form(words[1]));
+                }
+            default:
+                throw new IOException("wrong number of arguments of \"DUMP\"");
+            }
+        }
+        if (validWordLength(words, "migrate", 4)) {
+            return new Request(form(words[1]), RequestType.MIGRATE,
+                    form(words[2]), form(words[3]));
+        }
+        if (form(words[0]).equals("call")) {
+            // call(T1, procedure, arguments...)
+            if (words.length < 3)
+                throw new IOException("\"CALL\" needs a transaction and a procedure");
+            StringBuffer arguments = new StringBuffer();
+            for (int i = 3; i < words.length; i++) {
+                if (i > 3)
+                    arguments.append(',');
+                arguments.append(form(words[i]));
+            }
+            return new Request(form(words[2]), form(words[1]),
+                    RequestType.CALL, arguments.toString());
+        }
+        if (validWordLength(words, "end", 2)) {
+            return new Request(null, form(words[1]), RequestType.END, null);
+        }
+        throw new IOException("The following instruction is not supported :\n"
+                + Arrays.deepToString(words));
+    }
+
+    /**
+     * Parse define(name, parameters...): statements
+     * 
+     * @param line
+     * @return the request, the value is the parameters separated by ",",
+     *         then ":" and the statements, without spaces
+     * @throws IOException
+     */
+    private Request parseDefine(String line) throws IOException {
+        Matcher define = DEFINE.matcher(form(line).replaceAll("\\s+", ""));
+        if (!define.matches())
+            throw new IOException("\"DEFINE\" must be define(name, parameters...): statements");
+        String parameters = define.group(2).isEmpty() ? "" : define.group(2)
+                .substring(1);
+        return new Request(define.group(1), null, RequestType.DEFINE,
+                parameters + ":" + define.group(3));
+    }
+
+    /**
+     * Check the number of arguments
+     * 
+     * @param words
+     * @param word
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private boolean validWordLength(String[] words, String word, int length)
+            throws IOException {
+        String firstWord = words[0].trim().toLowerCase();
+        if (firstWord.equals(word)) {
+            if (words.length == length) {
+                return true;
+            } else {
+                throw new IOException("begin need " + length + " arguments");
+            }
+        } else {
+            return false;
+        }
+    }
+
+    private String form(String str) {
+        return str.trim().toLowerCase();
+    }
+}
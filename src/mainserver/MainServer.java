@@ -1,44 +1,165 @@
 package mainserver;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.TreeMap;
 
+import placement.ClassicPlacement;
+import placement.ConsistentHashPlacement;
+import placement.HashPlacement;
+import placement.Placement;
+import placement.RangePlacement;
+import site.DataStore;
+import site.HeapDataStore;
 import site.ImpSite;
+import site.MappedDataStore;
+import site.PersistentDataStore;
 import site.Site;
+import site.remote.RemoteSite;
+import site.remote.SiteProtocol;
 
+import trancmng.FailureDetector;
 import trancmng.ImpTransactionManager;
 import trancmng.TransactionManager;
 
 import entity.Request;
-import entity.RequestType;
 
 /**
  * Main server does the following jobs: <br>
  * Initialize the data. Initialize the sites. Map the sites name to its
  * reference. Parser the input into type of {@link Request}. Create a Transaction Manager
  * Object, and gives the request to it.
+ * <br>
+ * The data layout is decided by a {@link Placement}, chosen by the arguments:
+ * <br>
+ * [classic|hash|range|consistent] [siteCount] [replication] [resourceCount]
+ * [persistent|heap|mapped] [remote sites] <br>
+ * Without arguments, the layout of the project description is used. The fifth
+ * argument chooses where the sites keep committed data: persistent keeps it in
+ * a persistent trie with O(1) snapshots, heap in a plain array, and mapped in
+ * a memory mapped file per site in the temporary directory. <br>
+ * The last argument, if given, is the comma separated addresses of the
+ * {@link SiteProcess}es of sites 1, 2, ..., and the sites are reached over
+ * the network instead of living in this process. <br>
+ * With the system property calls.deterministic=true, procedure calls are
+ * sequenced, see {@link ImpTransactionManager#setDeterministic(boolean)}.
  * 
  * @author jinglun
  * 
  */
 public class MainServer {
+
+    /**
+     * number of resources, named x1 .. x(resourceCount)
+     */
+    private final int resourceCount;
+
+    /**
+     * decides which site holds which resource
+     */
+    private final Placement placement;
+
+    /**
+     * where the sites keep committed data, persistent, heap or mapped
+     */
+    private final String store;
+
+    /**
+     * addresses of the remote sites, null if the sites live in this process
+     */
+    private final String[] remote;
+
+    /**
+     * milliseconds to wait for a remote site before it is taken as failed
+     */
+    static final long REMOTE_TIMEOUT = 1000;
+
+    /**
+     * milliseconds between two heartbeats to a remote site
+     */
+    static final long HEARTBEAT_INTERVAL = 200;
+
+    public MainServer(Placement placement, int resourceCount) {
+        this(placement, resourceCount, "persistent");
+    }
+
+    public MainServer(Placement placement, int resourceCount, String store) {
+        this(placement, resourceCount, store, null);
+    }
+
+    public MainServer(Placement placement, int resourceCount, String store,
+            String[] remote) {
+        this.placement = placement;
+        this.resourceCount = resourceCount;
+        this.store = store.toLowerCase();
+        this.remote = remote;
+        if (remote != null && remote.length != placement.getSiteCount())
+            throw new IllegalArgumentException("expected "
+                    + placement.getSiteCount() + " site addresses, got "
+                    + remote.length);
+    }
+
     public static void main(String[] args) {
-        MainServer it = new MainServer();
+        MainServer it = create(args);
         it.doit();
     }
 
-    private TransactionManager createTM() {
-        TransactionManager it = new ImpTransactionManager(this.initSites(),
-                this.initResources());
+    /**
+     * Create the server from the command line arguments
+     */
+    static MainServer create(String[] args) {
+        return new MainServer(createPlacement(args), resourceCount(args),
+                args.length > 4 ? args[4] : "persistent",
+                args.length > 5 ? args[5].split(",") : null);
+    }
+
+    static int resourceCount(String[] args) {
+        return args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    }
+
+    /**
+     * Create the placement from the command line arguments
+     * 
+     * @param args
+     *            [kind] [siteCount] [replication] [resourceCount]
+     * @return the placement, the classic one by default
+     */
+    static Placement createPlacement(String[] args) {
+        String kind = args.length > 0 ? args[0].toLowerCase() : "classic";
+        int siteCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int replication = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        if (kind.equals("classic"))
+            return new ClassicPlacement(siteCount);
+        if (kind.equals("hash"))
+            return new HashPlacement(siteCount, replication);
+        if (kind.equals("range"))
+            return new RangePlacement(siteCount, replication,
+                    resourceCount(args));
+        if (kind.equals("consistent"))
+            return new ConsistentHashPlacement(siteCount, replication, 64);
+        throw new IllegalArgumentException("unknown placement [" + kind + "]");
+    }
+
+    ImpTransactionManager createTM() {
+        Map<String, Site> siteMap = this.initSites();
+        ImpTransactionManager it = new ImpTransactionManager(siteMap,
+                this.initResources(), this.placement);
+        it.setDeterministic(Boolean.getBoolean("calls.deterministic"));
+        // remote sites can fail without a fail request
+        if (remote != null) {
+            FailureDetector detector = new FailureDetector(siteMap.values(),
+                    HEARTBEAT_INTERVAL, REMOTE_TIMEOUT);
+            it.setFailureDetector(detector);
+            detector.start();
+        }
         return it;
     }
 
@@ -46,19 +167,15 @@ public class MainServer {
 
         TransactionManager tm = this.createTM();
         Queue<Request> requests = new LinkedList<Request>();
+        InstructionParser parser = new InstructionParser();
 
         Scanner scanner = new Scanner(System.in);
         String line = "";
         while (true) {
             line = scanner.nextLine();
-            String[] instructions = line.trim().split(";");
             requests.clear();
             try {
-                for (String str : instructions) {
-                    String[] words = str.split("[^\\w|\\s]+");
-                    // System.out.println(parse(words));
-                    requests.offer(parse(words));
-                }
+                requests.addAll(parser.parseLine(line));
             } catch (IOException e) {
                 System.out
                         .println("An unsupport line of instructions, because of:\n "
@@ -72,136 +189,108 @@ public class MainServer {
     }
 
     /**
-     * Construct request from String[] which contains one single instruction
-     * 
-     * @param words
-     * @return
-     * @throws IOException
-     */
-    private Request parse(String[] words) throws IOException {
-
-        if (validWordLength(words, "begin", 2)) {
-            return new Request(null, form(words[1]), RequestType.BEGIN, null);
-        }
-        if (validWordLength(words, "beginro", 2)) {
-            return new Request(null, form(words[1]), RequestType.BEGINRO, null);
-        }
-        if (validWordLength(words, "w", 4)) {
-            return new Request(form(words[2]), form(words[1]),
-                    RequestType.WRITE, form(words[3]));
-        }
-        if (validWordLength(words, "r", 3)) {
-            return new Request(form(words[2]), form(words[1]),
-                    RequestType.READ, null);
-        }
-        if (validWordLength(words, "fail", 2)) {
-            return new Request(RequestType.FAIL, form(words[1]));
-        }
-        if (validWordLength(words, "recover", 2)) {
-            return new Request(RequestType.RECOVER, form(words[1]));
-        }
-        if (form(words[0]).equals("dump")) {
-            switch (words.length) {
-            case 1:
-                return new Request(RequestType.DUMP, null);
-            case 2:
-                if (form(words[1]).matches("x.*")) { // dump resource
-                    return new Request(form(words[1]), null, RequestType.DUMP,
-                            null);
-                } else { // dump site
-                    return new Request(RequestType.DUMP, form(words[1]));
-                }
-            default:
-                throw new IOException("wrong number of arguments of \"DUMP\"");
-            }
-        }
-        if (validWordLength(words, "end", 2)) {
-            return new Request(null, form(words[1]), RequestType.END, null);
-        }
-        throw new IOException("The following instruction is not supported :\n"
-                + Arrays.deepToString(words));
-    }
-
-    /**
-     * Check the number of arguments
-     * 
-     * @param words
-     * @param word
-     * @param length
-     * @return
-     * @throws IOException
-     */
-    private boolean validWordLength(String[] words, String word, int length)
-            throws IOException {
-        String firstWord = words[0].trim().toLowerCase();
-        if (firstWord.equals(word)) {
-            if (words.length == length) {
-                return true;
-            } else {
-                throw new IOException("begin need " + length + " arguments");
-            }
-        } else {
-            return false;
-        }
-    }
-
-    private String form(String str) {
-        return str.trim().toLowerCase();
-    }
-
-    /**
-     * Generate data for different site depends on the site number. Even
-     * variables are created for each site. Odd variables created only for site
-     * (siteNum + 1) %10
+     * Generate data for different site depends on the site number. Each
+     * resource xi with initial value 10 * i is created on the sites given by
+     * the placement.
      * 
      * @param siteNum
-     *            In our test case, 1 <= siteNum <= 10
+     *            1 <= siteNum <= siteCount of the placement
      * @return
      */
-    Map<String, String> createData(int siteNum) {
-        Map<String, String> data = new HashMap<String, String>();
-        for (int i = 2; i <= 20; i += 2) {
-            data.put("x" + i, String.valueOf(i * 10));
-        }
-        if (siteNum % 2 == 0) {
-            data.put("x" + (siteNum - 1), String.valueOf(10 * (siteNum - 1)));
-            data.put("x" + (siteNum - 1 + 10),
-                    String.valueOf(10 * (siteNum - 1 + 10)));
+    Map<String, Long> createData(int siteNum) {
+        Map<String, Long> data = new HashMap<String, Long>();
+        for (int i = 1; i <= resourceCount; i++) {
+            if (placement.sitesOf("x" + i).contains(siteNum))
+                data.put("x" + i, 10L * i);
         }
         return data;
     }
 
     /**
-     * A set of odd variables in given site
+     * A set of not replicated variables in given site
      * 
      * @param siteNum
-     * @return return empty set if it is a odd site
+     * @return return empty set if all variables on the site are replicated
      */
     Set<String> createUnique(int siteNum) {
         Set<String> unique = new HashSet<String>();
-        if (siteNum % 2 == 0) {
-            unique.add("x" + (siteNum - 1));
-            unique.add("x" + (siteNum - 1 + 10));
+        for (int i = 1; i <= resourceCount; i++) {
+            List<Integer> holders = placement.sitesOf("x" + i);
+            if (holders.size() == 1 && holders.get(0) == siteNum)
+                unique.add("x" + i);
         }
         return unique;
     }
 
     private Map<String, Site> initSites() {
 
-        Map<String, Site> siteMap = new HashMap<String, Site>();
+        Map<String, Site> siteMap = new LinkedHashMap<String, Site>();
 
-        for (int id = 1; id < 10; id++) {
-            siteMap.put(String.valueOf(id), new ImpSite(id,
-                    this.createData(id), this.createUnique(id)));
+        for (int id = 1; id <= placement.getSiteCount(); id++) {
+            if (remote == null)
+                siteMap.put(String.valueOf(id), this.createSite(id));
+            else
+                siteMap.put(String.valueOf(id), new RemoteSite(id,
+                        SiteProtocol.address(remote[id - 1].trim()),
+                        REMOTE_TIMEOUT));
         }
 
         return siteMap;
 
     }
 
+    /**
+     * Create the site with its initial data
+     * 
+     * @param id
+     *            1 <= id <= siteCount of the placement
+     * @return the site
+     */
+    ImpSite createSite(int id) {
+        return this.createSite(id, this.createData(id));
+    }
+
+    /**
+     * Create the site with the data read from its checkpoints
+     * 
+     * @param id
+     * @param data
+     *            value of each resource on the site
+     * @return the site
+     */
+    ImpSite createSite(int id, Map<String, Long> data) {
+        return new ImpSite(id, data, this.createUnique(id),
+                this.createStore(id));
+    }
+
+    /**
+     * Create an empty store for the committed data of a site
+     * 
+     * @param siteNum
+     * @return a persistent or heap store, or a store mapped on
+     *         site[siteNum].store in the temporary directory
+     */
+    private DataStore createStore(int siteNum) {
+        if (store.equals("persistent"))
+            return new PersistentDataStore();
+        if (store.equals("heap"))
+            return new HeapDataStore();
+        if (!store.equals("mapped"))
+            throw new IllegalArgumentException("unknown store [" + store + "]");
+        File file = new File(System.getProperty("java.io.tmpdir"), "site"
+                + siteNum + ".store");
+        file.delete();
+        try {
+            return new MappedDataStore(file);
+        } catch (IOException e) {
+            throw new RuntimeException("can not create data store of site ["
+                    + siteNum + "]", e);
+        }
+    }
+
     private Set<String> initResources() {
         Set<String> it = new HashSet<String>();
-        for (int i = 1; i < 21; i++)
+        for (int i = 1; i <= resourceCount; i++)
             it.add("x" + String.valueOf(i));
         return it;
     }
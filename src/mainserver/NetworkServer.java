@@ -0,0 +1,482 @@
+package mainserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+import trancmng.AdaptiveAdmissionControl;
+import trancmng.AdmissionControl;
+import trancmng.AsyncTransactionManager;
+import trancmng.ImpTransactionManager;
+
+import entity.Request;
+import entity.RequestType;
+import entity.Response;
+
+/**
+ * TCP front end of the engine, speaking the same instruction language as the
+ * console of {@link MainServer}, one line at a time. <br>
+ * <br>
+ * Each instruction of a connection gets a sequence number, starting from 1,
+ * and its response is written back as "sequence TYPE: value" when it is
+ * ready. Responses are multiplexed: a read waiting for a lock does not hold
+ * back the responses of later instructions. A line that can not be parsed
+ * takes one sequence number and is answered with an error. <br>
+ * <br>
+ * All lines received together from a connection are parsed and submitted as
+ * one batch. A connection stops being read while it has too many instructions
+ * not answered, or while the waiting list of the transaction manager is too
+ * long, so clients are slowed down instead of growing the waiting list. <br>
+ * <br>
+ * Responses are written without blocking. When the socket of a slow client is
+ * full, the rest is kept on its connection and written when the socket is
+ * writable again, the other connections are served meanwhile. <br>
+ * <br>
+ * The transactions a connection began and did not end are aborted when it is
+ * closed, so a client going away does not keep its locks.
+ * 
+ */
+public class NetworkServer implements Runnable {
+
+    /**
+     * instructions not answered on one connection before it stops being read
+     */
+    static final int MAX_IN_FLIGHT = 256;
+
+    /**
+     * size of the waiting list from which no connection is read
+     */
+    static final int MAX_WAITING = 1024;
+
+    /**
+     * admission control of the transactions of all connections, see
+     * {@link AdaptiveAdmissionControl}
+     */
+    static final int MIN_ACTIVE = 4;
+
+    static final int MAX_ACTIVE = 64;
+
+    static final int MAX_QUEUED_PER_RESOURCE = 32;
+
+    static final double TARGET_ABORT_RATIO = 0.2;
+
+    /**
+     * milliseconds
+     */
+    static final long TARGET_WAIT = 50;
+
+    /**
+     * restarts of a transaction killed by wait-die before it is aborted
+     */
+    static final int MAX_RESTARTS = 8;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The state of one client connection
+     */
+    private class Connection {
+        final SocketChannel channel;
+
+        final SelectionKey key;
+
+        /**
+         * bytes received and not parsed yet, a partial line
+         */
+        final StringBuilder received = new StringBuilder();
+
+        /**
+         * encoded responses to write, filled by the engine thread
+         */
+        final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /**
+         * the response being written, with the bytes the socket did not take
+         * yet, null if there is none
+         */
+        ByteBuffer unwritten = null;
+
+        /**
+         * false while the connection is paused
+         */
+        boolean reading = true;
+
+        /**
+         * sequence number of the last instruction received
+         */
+        long sequence = 0;
+
+        /**
+         * instructions not answered yet
+         */
+        int inFlight = 0;
+
+        /**
+         * transactions begun on the connection and not ended yet, ended by
+         * the engine thread
+         */
+        final Set<String> open = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final AsyncTransactionManager tm;
+
+    private final InstructionParser parser;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel server;
+
+    /**
+     * connections with responses to write, filled by the engine thread
+     */
+    private final Queue<Connection> ready;
+
+    /**
+     * connections that stopped being read
+     */
+    private final List<Connection> paused;
+
+    private volatile boolean running;
+
+    /**
+     * Bind the server. {@link #run()} serves the connections.
+     * 
+     * @param tm
+     * @param address
+     *            address to listen to, i.e. loopback with port 0 for any
+     *            free port
+     * @throws IOException
+     */
+    public NetworkServer(AsyncTransactionManager tm, InetSocketAddress address)
+            throws IOException {
+        this.tm = tm;
+        this.parser = new InstructionParser();
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(address);
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.ready = new ConcurrentLinkedQueue<Connection>();
+        this.paused = new LinkedList<Connection>();
+        this.running = true;
+    }
+
+    /**
+     * java mainserver.NetworkServer port [placement arguments of MainServer]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7000;
+        String[] rest = args.length > 0 ? Arrays.copyOfRange(args, 1,
+                args.length) : args;
+        MainServer main = MainServer.create(rest);
+        ImpTransactionManager tm = main.createTM();
+        tm.setAdmissionControl(new AdaptiveAdmissionControl(MIN_ACTIVE,
+                MAX_ACTIVE, MAX_QUEUED_PER_RESOURCE, TARGET_ABORT_RATIO,
+                TARGET_WAIT, AdmissionControl.Overload.DELAY));
+        tm.setAutoRestart(MAX_RESTARTS);
+        NetworkServer it = new NetworkServer(new AsyncTransactionManager(tm),
+                new InetSocketAddress(port));
+        System.out.println("listening on " + it.getAddress());
+        it.run();
+    }
+
+    /**
+     * @return the address the server is bound to
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Stop serving, {@link #run()} returns soon after
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // wake up from time to time to check the waiting list
+                selector.select(50);
+                Connection connection;
+                while ((connection = ready.poll()) != null)
+                    this.write(connection);
+                this.resume();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    Connection selected = (Connection) key.attachment();
+                    if (key.isWritable())
+                        this.write(selected);
+                    if (key.isValid() && key.isReadable())
+                        this.read(selected);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("error: mainserver.NetworkServer.run\n  " + e);
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys())
+                    key.channel().close();
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("error: mainserver.NetworkServer.run\n  "
+                        + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Read what is available, and submit the complete lines as one batch
+     */
+    private void read(Connection connection) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int count;
+        try {
+            while ((count = connection.channel.read(buffer)) > 0) {
+                buffer.flip();
+                connection.received.append(StandardCharsets.UTF_8
+                        .decode(buffer));
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            count = -1;
+        }
+
+        List<Request> batch = new LinkedList<Request>();
+        List<Long> sequences = new LinkedList<Long>();
+        List<Boolean> opening = new LinkedList<Boolean>();
+        int end;
+        while ((end = connection.received.indexOf("\n")) >= 0) {
+            String line = connection.received.substring(0, end).trim();
+            connection.received.delete(0, end + 1);
+            if (line.isEmpty())
+                continue;
+            long first = connection.sequence + 1;
+            try {
+                List<Request> requests = parser.parseLine(line);
+                for (Request request : requests) {
+                    batch.add(request);
+                    sequences.add(++connection.sequence);
+                    opening.add(begins(request)
+                            && connection.open.add(request.transaction));
+                }
+            } catch (IOException e) {
+                connection.sequence = first;
+                connection.inFlight++;
+                this.reply(connection, first, "ERROR: " + e.getMessage());
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            connection.inFlight += batch.size();
+            List<CompletableFuture<Response>> futures = tm.submitAll(batch);
+            Iterator<Long> sequence = sequences.iterator();
+            Iterator<Boolean> opened = opening.iterator();
+            for (CompletableFuture<Response> future : futures)
+                future.whenComplete(this.replier(connection, sequence.next(),
+                        opened.next()));
+        }
+
+        if (count < 0) {
+            this.close(connection);
+            return;
+        }
+        this.pauseIfBusy(connection);
+    }
+
+    /**
+     * The callback writing the response of one instruction
+     * 
+     * @param opened
+     *            true if the instruction began a transaction of the
+     *            connection
+     */
+    private BiConsumer<Response, Throwable> replier(
+            final Connection connection, final long sequence,
+            final boolean opened) {
+        return new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable failure) {
+                if (response != null && ends(response, opened))
+                    connection.open.remove(response.request.transaction);
+                NetworkServer.this.reply(connection, sequence,
+                        failure == null ? String.valueOf(response) : "ERROR: "
+                                + failure);
+            }
+        };
+    }
+
+    /**
+     * @return true if the request begins a transaction
+     */
+    private static boolean begins(Request request) {
+        return request.requestType == RequestType.BEGIN
+                || request.requestType == RequestType.BEGINRO
+                || request.requestType == RequestType.CALL;
+    }
+
+    /**
+     * @param opened
+     *            true if the request began a transaction of the connection
+     * @return true if the transaction of the request is over after the
+     *         response, or never began
+     */
+    private static boolean ends(Response response, boolean opened) {
+        switch (response.responseType) {
+        case COMMITTED:
+        case ABORTED:
+        case UNKNOWN:
+            return true;
+        case ERROR:
+            return opened;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Queue one response line, called from any thread
+     */
+    private void reply(Connection connection, long sequence, String text) {
+        String line = sequence + " " + text.trim().replace('\n', '|') + "\n";
+        connection.outgoing.offer(StandardCharsets.UTF_8.encode(CharBuffer
+                .wrap(line)));
+        ready.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Write the queued responses of the connection, as much as the socket
+     * takes. If it is full, the connection waits to be writable and is
+     * written again then. The connection is closed if a write fails.
+     */
+    private void write(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+        try {
+            while (true) {
+                if (connection.unwritten == null)
+                    connection.unwritten = connection.outgoing.poll();
+                if (connection.unwritten == null)
+                    break;
+                connection.channel.write(connection.unwritten);
+                if (connection.unwritten.hasRemaining())
+                    break;
+                connection.unwritten = null;
+                connection.inFlight--;
+            }
+        } catch (IOException e) {
+            this.close(connection);
+            return;
+        }
+        this.interest(connection);
+    }
+
+    /**
+     * Select a connection for reading unless it is paused, and for writing
+     * while a response is not written entirely
+     */
+    private void interest(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+        connection.key.interestOps((connection.reading ? SelectionKey.OP_READ
+                : 0)
+                | (connection.unwritten != null ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Stop reading a connection when it or the engine is too busy
+     */
+    private void pauseIfBusy(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+        if (connection.inFlight >= MAX_IN_FLIGHT
+                || tm.waitingCount() >= MAX_WAITING) {
+            connection.reading = false;
+            this.interest(connection);
+            paused.add(connection);
+        }
+    }
+
+    /**
+     * Read again the paused connections that are not busy anymore
+     */
+    private void resume() {
+        if (tm.waitingCount() >= MAX_WAITING)
+            return;
+        Iterator<Connection> it = paused.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (!connection.key.isValid()) {
+                it.remove();
+            } else if (connection.inFlight < MAX_IN_FLIGHT) {
+                connection.reading = true;
+                this.interest(connection);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Close the connection, and abort the transactions it left open
+     */
+    private void close(Connection connection) {
+        for (String transaction : connection.open) {
+            System.out.println("connection closed, aborting [" + transaction
+                    + "]");
+            tm.submit(new Request(null, transaction, RequestType.ABORT, null));
+        }
+        connection.open.clear();
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.err.println("error: mainserver.NetworkServer.close\n  " + e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package mainserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import site.Checkpointer;
+import site.ImpSite;
+import site.remote.SiteProtocol;
+import site.remote.SiteServer;
+
+/**
+ * Runs one site in its own process, served by a {@link SiteServer}. <br>
+ * <br>
+ * java mainserver.SiteProcess siteNum address [placement arguments of
+ * MainServer] <br>
+ * The address is a port on the loopback, host:port, or the path of a unix
+ * domain socket. The placement arguments must be the same as the ones of the
+ * {@link MainServer} using the site, so the site starts with its share of the
+ * data. <br>
+ * <br>
+ * With -Dsite.checkpoints=directory, the site starts from its checkpoints and
+ * redo logs in the directory if there are some, takes a checkpoint every
+ * {@link #CHECKPOINT_INTERVAL} commits, and logs every commit in between, so
+ * a restarted site has all it had committed.
+ * 
+ */
+public class SiteProcess {
+
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: SiteProcess siteNum address "
+                    + "[placement arguments]");
+            return;
+        }
+        int id = Integer.parseInt(args[0]);
+        String[] rest = Arrays.copyOfRange(args, 2, args.length);
+        MainServer main = MainServer.create(rest);
+        ImpSite site;
+        String checkpoints = System.getProperty("site.checkpoints");
+        if (checkpoints == null) {
+            site = main.createSite(id);
+        } else {
+            File directory = new File(checkpoints);
+            Map<String, Long> saved = Checkpointer.load(directory, id,
+                    main.createData(id));
+            site = saved == null ? main.createSite(id) : main.createSite(id,
+                    saved);
+            site.setCheckpointer(new Checkpointer(directory, id),
+                    CHECKPOINT_INTERVAL);
+            if (saved != null)
+                System.out.println("site [" + id + "] loaded "
+                        + saved.size() + " resources from " + directory);
+        }
+        SiteServer server = new SiteServer(site,
+                SiteProtocol.address(args[1]));
+        System.out.println("site [" + id + "] listening on "
+                + server.getAddress());
+        server.run();
+    }
+}
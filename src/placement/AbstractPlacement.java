@@ -0,0 +1,137 @@
+package placement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Common part of the placement functions. A resource is placed on a primary
+ * site given by {@link #primarySite(String)}, and its replicas are put on the
+ * following sites in a round robin way. <br>
+ * <br>
+ * The replication factor is the default one, unless it is overridden for a
+ * range of resource index by {@link #setReplication(int, int, int)}.
+ * 
+ */
+public abstract class AbstractPlacement implements Placement {
+
+    /**
+     * number of sites
+     */
+    protected final int siteCount;
+
+    /**
+     * default number of copies of each resource
+     */
+    private final int replication;
+
+    /**
+     * Map from the lower bound of a range of resource index to {upper bound,
+     * replication factor}. Ranges do not overlap.
+     */
+    private final TreeMap<Integer, int[]> rangeReplication;
+
+    /**
+     * @param siteCount
+     *            number of sites, must be positive
+     * @param replication
+     *            default number of copies, 1 <= replication <= siteCount
+     */
+    protected AbstractPlacement(int siteCount, int replication) {
+        if (siteCount < 1)
+            throw new IllegalArgumentException("site count must be positive");
+        this.siteCount = siteCount;
+        this.replication = checkReplication(replication);
+        this.rangeReplication = new TreeMap<Integer, int[]>();
+    }
+
+    @Override
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * Override the replication factor for resources with index in [low, high].
+     * The range must not overlap a range set before.
+     * 
+     * @param low
+     *            lower bound of resource index, inclusive
+     * @param high
+     *            upper bound of resource index, inclusive
+     * @param factor
+     *            number of copies of resources in this range
+     */
+    public void setReplication(int low, int high, int factor) {
+        if (low > high)
+            throw new IllegalArgumentException("empty range [" + low + ", "
+                    + high + "]");
+        Map.Entry<Integer, int[]> floor = rangeReplication.floorEntry(high);
+        if (floor != null && floor.getValue()[0] >= low)
+            throw new IllegalArgumentException("range [" + low + ", " + high
+                    + "] overlaps range [" + floor.getKey() + ", "
+                    + floor.getValue()[0] + "]");
+        rangeReplication.put(low,
+                new int[] { high, checkReplication(factor) });
+    }
+
+    /**
+     * The number of copies of the given resource
+     * 
+     * @param resource
+     * @return replication factor of the resource
+     */
+    public int replicationOf(String resource) {
+        int index = indexOf(resource);
+        Map.Entry<Integer, int[]> floor = rangeReplication.floorEntry(index);
+        if (floor != null && floor.getValue()[0] >= index)
+            return floor.getValue()[1];
+        return replication;
+    }
+
+    @Override
+    public List<Integer> sitesOf(String resource) {
+        int primary = primarySite(resource);
+        int copies = replicationOf(resource);
+        List<Integer> result = new ArrayList<Integer>(copies);
+        for (int i = 0; i < copies; i++)
+            result.add((primary - 1 + i) % siteCount + 1);
+        return result;
+    }
+
+    @Override
+    public boolean isReplicated(String resource) {
+        return sitesOf(resource).size() > 1;
+    }
+
+    /**
+     * The primary site of the resource
+     * 
+     * @param resource
+     * @return site number, 1 <= site <= siteCount
+     */
+    protected abstract int primarySite(String resource);
+
+    private int checkReplication(int factor) {
+        if (factor < 1 || factor > siteCount)
+            throw new IllegalArgumentException("replication factor " + factor
+                    + " is not in [1, " + siteCount + "]");
+        return factor;
+    }
+
+    /**
+     * Parse the index of a resource name, i.e. 13 for "x13"
+     * 
+     * @param resource
+     * @return the number following the leading letters of the name
+     */
+    static int indexOf(String resource) {
+        int i = 0;
+        while (i < resource.length() && !Character.isDigit(resource.charAt(i)))
+            i++;
+        if (i == resource.length())
+            throw new IllegalArgumentException("resource [" + resource
+                    + "] has no index");
+        return Integer.parseInt(resource.substring(i));
+    }
+}
@@ -0,0 +1,48 @@
+package placement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The layout of the project description: even resources are on every site,
+ * odd resource xi is only on site (i mod siteCount) + 1.
+ * 
+ */
+public class ClassicPlacement implements Placement {
+
+    private final int siteCount;
+
+    /**
+     * The sites holding even resources, shared by all even resources
+     */
+    private final List<Integer> allSites;
+
+    public ClassicPlacement(int siteCount) {
+        if (siteCount < 1)
+            throw new IllegalArgumentException("site count must be positive");
+        this.siteCount = siteCount;
+        List<Integer> temp = new ArrayList<Integer>(siteCount);
+        for (int site = 1; site <= siteCount; site++)
+            temp.add(site);
+        this.allSites = Collections.unmodifiableList(temp);
+    }
+
+    @Override
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    @Override
+    public List<Integer> sitesOf(String resource) {
+        int index = AbstractPlacement.indexOf(resource);
+        if (index % 2 == 0)
+            return allSites;
+        return Collections.singletonList(index % siteCount + 1);
+    }
+
+    @Override
+    public boolean isReplicated(String resource) {
+        return siteCount > 1 && AbstractPlacement.indexOf(resource) % 2 == 0;
+    }
+}
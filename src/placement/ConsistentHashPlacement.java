@@ -0,0 +1,82 @@
+package placement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing. Each site owns a number of virtual nodes on a hash ring.
+ * A resource is placed on the owners of the first virtual nodes found walking
+ * clockwise from the hash of its name, skipping sites already chosen.
+ * 
+ */
+public class ConsistentHashPlacement extends AbstractPlacement {
+
+    /**
+     * hash ring, map from the position of a virtual node to its site
+     */
+    private final TreeMap<Integer, Integer> ring;
+
+    /**
+     * @param siteCount
+     * @param replication
+     * @param virtualNodes
+     *            number of virtual nodes of each site on the ring
+     */
+    public ConsistentHashPlacement(int siteCount, int replication,
+            int virtualNodes) {
+        super(siteCount, replication);
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException(
+                    "virtual node number must be positive");
+        this.ring = new TreeMap<Integer, Integer>();
+        for (int site = 1; site <= siteCount; site++)
+            for (int v = 0; v < virtualNodes; v++)
+                ring.put(hash("site" + site + "#" + v), site);
+    }
+
+    @Override
+    protected int primarySite(String resource) {
+        return this.walk(hash(resource)).getValue();
+    }
+
+    @Override
+    public List<Integer> sitesOf(String resource) {
+        int copies = replicationOf(resource);
+        List<Integer> result = new ArrayList<Integer>(copies);
+        Map.Entry<Integer, Integer> node = this.walk(hash(resource));
+        while (result.size() < copies) {
+            if (!result.contains(node.getValue()))
+                result.add(node.getValue());
+            node = this.walk(node.getKey() + 1);
+        }
+        return result;
+    }
+
+    /**
+     * The first virtual node at or after the given position, wrapping around
+     */
+    private Map.Entry<Integer, Integer> walk(int position) {
+        Map.Entry<Integer, Integer> node = ring.ceilingEntry(position);
+        return node == null ? ring.firstEntry() : node;
+    }
+
+    /**
+     * FNV-1a hash of the string followed by the murmur3 finalizer, position
+     * on the ring. FNV alone leaves short similar names close to each other.
+     */
+    private static int hash(String key) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,20 @@
+package placement;
+
+/**
+ * Places the primary copy of a resource by the hash of its name.
+ * 
+ */
+public class HashPlacement extends AbstractPlacement {
+
+    public HashPlacement(int siteCount, int replication) {
+        super(siteCount, replication);
+    }
+
+    @Override
+    protected int primarySite(String resource) {
+        // spread the bits, String.hashCode of "x1".."xn" are consecutive
+        int h = resource.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % siteCount + 1;
+    }
+}
@@ -0,0 +1,40 @@
+package placement;
+
+import java.util.List;
+
+/**
+ * Decides which sites hold a copy of each resource. <br>
+ * <br>
+ * The main server asks the placement which resources to create on each site,
+ * and the transaction manager asks the placement which sites to contact for a
+ * resource. Sites are numbered from 1 to {@link #getSiteCount()}.
+ * 
+ */
+public interface Placement {
+
+    /**
+     * Getter of the number of sites
+     * 
+     * @return number of sites, site numbers are 1 .. siteCount
+     */
+    public int getSiteCount();
+
+    /**
+     * The site numbers that hold a copy of the given resource. The first site
+     * in the list is the primary copy, the others are replicas. Never returns
+     * an empty list.
+     * 
+     * @param resource
+     *            resource name, i.e. "x3"
+     * @return site numbers holding the resource, primary first
+     */
+    public List<Integer> sitesOf(String resource);
+
+    /**
+     * Check if the resource has more than one copy
+     * 
+     * @param resource
+     * @return true if more than one site holds the resource
+     */
+    public boolean isReplicated(String resource);
+}
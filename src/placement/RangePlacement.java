@@ -0,0 +1,32 @@
+package placement;
+
+/**
+ * Splits resource index 1 .. resourceCount into siteCount contiguous ranges
+ * of (nearly) equal size, and places the primary copy of each range on its
+ * own site. i.e. with 20 resources and 10 sites, x1 and x2 are on site 1.
+ * 
+ */
+public class RangePlacement extends AbstractPlacement {
+
+    /**
+     * number of resources, used to compute the ranges
+     */
+    private final int resourceCount;
+
+    public RangePlacement(int siteCount, int replication, int resourceCount) {
+        super(siteCount, replication);
+        if (resourceCount < 1)
+            throw new IllegalArgumentException(
+                    "resource count must be positive");
+        this.resourceCount = resourceCount;
+    }
+
+    @Override
+    protected int primarySite(String resource) {
+        int index = indexOf(resource);
+        if (index < 1 || index > resourceCount)
+            throw new IllegalArgumentException("resource [" + resource
+                    + "] is out of range [1, " + resourceCount + "]");
+        return (int) ((long) (index - 1) * siteCount / resourceCount) + 1;
+    }
+}
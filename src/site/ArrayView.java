@@ -0,0 +1,24 @@
+package site;
+
+/**
+ * A view on a private copy of the values
+ * 
+ */
+class ArrayView implements StoreView {
+
+    private final long[] values;
+
+    ArrayView(long[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public long get(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+}
@@ -0,0 +1,350 @@
+package site;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the checkpoints of a site in a directory, on a thread of its own. <br>
+ * <br>
+ * A checkpoint is a full one, all the committed data of the site, or a delta,
+ * the resources committed, added or removed since the checkpoint before it,
+ * found from the dirty slots of the {@link ImpDataManager}. Each is taken on
+ * a snapshot of the committed data, so it is consistent at one commit while
+ * the site goes on, and only the writing is done in the background. <br>
+ * <br>
+ * The files are site[n]-[sequence].full and .delta. A full checkpoint is
+ * written instead of a delta after {@link #MAX_DELTAS} deltas, or when half of
+ * the site has changed, and the files before it are deleted then. So loading
+ * reads at most one full checkpoint and {@link #MAX_DELTAS} deltas. A file is
+ * written under a temporary name and renamed once forced to the disk. If a
+ * write fails, the next checkpoint is a full one. <br>
+ * <br>
+ * The changes between two checkpoints are kept in a redo log, one record per
+ * commit, import or drop, forced to the disk before the site answers. The log
+ * site[n]-[sequence].log has the changes made before the checkpoint of the
+ * same sequence number was taken, and after the one before it. Loading
+ * replays the logs following the last checkpoint read, so a site restarted
+ * from its checkpoints has all it had committed. The logs are deleted with
+ * the checkpoints before a full one.
+ *
+ */
+public class Checkpointer {
+
+    /**
+     * deltas written at most between two full checkpoints
+     */
+    static final int MAX_DELTAS = 16;
+
+    private static final String FULL = "full";
+
+    private static final String DELTA = "delta";
+
+    private static final String LOG = "log";
+
+    private final File directory;
+
+    private final int siteNum;
+
+    private final ExecutorService writer;
+
+    /**
+     * sequence number of the next checkpoint
+     */
+    private int sequence;
+
+    /**
+     * deltas taken since the last full checkpoint, -1 before the first one
+     */
+    private int deltas;
+
+    /**
+     * set by the writer when a checkpoint could not be written
+     */
+    private volatile boolean failed;
+
+    /**
+     * redo log of the changes until the next checkpoint, null if it can not
+     * be written
+     */
+    private FileChannel log;
+
+    /**
+     * buffer the records of the redo log are written through
+     */
+    private final ByteBuffer record = ByteBuffer.allocate(SiteDump.CHUNK);
+
+    /**
+     * @param directory
+     *            where the checkpoints are written, created if needed
+     * @param siteNum
+     * @throws RuntimeException
+     *             if the directory can not be created
+     */
+    public Checkpointer(File directory, final int siteNum) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("can not create checkpoint directory "
+                    + directory);
+        this.directory = directory;
+        this.siteNum = siteNum;
+        TreeMap<Integer, File> files = files(directory, siteNum, FULL + "|"
+                + DELTA);
+        TreeMap<Integer, File> logs = files(directory, siteNum, LOG);
+        // the logs loaded are kept until the next full checkpoint
+        this.sequence = Math.max(files.isEmpty() ? 0 : files.lastKey() + 1,
+                logs.isEmpty() ? 0 : logs.lastKey() + 1);
+        this.deltas = -1;
+        this.failed = false;
+        this.openLog();
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "site-" + siteNum
+                        + "-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Take a checkpoint of the data and write it in the background. It
+     * should be called while the site does nothing else.
+     *
+     * @param data
+     */
+    public void checkpoint(ImpDataManager data) {
+        final boolean full = failed || deltas < 0 || deltas >= MAX_DELTAS
+                || data.dirtyCount() * 2 > data.size();
+        final SiteDump dump = data.openCheckpoint(full);
+        if (!full && dump.isEmpty())
+            return;
+        final int number = sequence++;
+        deltas = full ? 0 : deltas + 1;
+        failed = false;
+        // the changes after this checkpoint go to the next log
+        this.closeLog();
+        this.openLog();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(dump, number, full);
+            }
+        });
+    }
+
+    /**
+     * Write the changes since the last record to the redo log, and force it
+     * to the disk. It should be called after each commit, import or drop,
+     * before the site answers.
+     *
+     * @param data
+     */
+    public void log(ImpDataManager data) {
+        SiteDump changes = data.openRecord();
+        if (changes.isEmpty() || log == null)
+            return;
+        try {
+            changes.writeCheckpoint(log, record);
+            log.force(false);
+        } catch (IOException e) {
+            this.logFailed(e);
+        } catch (RuntimeException e) {
+            this.logFailed(e);
+        }
+    }
+
+    /**
+     * Stop writing the redo log until the next checkpoint, which is a full
+     * one
+     */
+    private void logFailed(Exception e) {
+        System.err.println("site [" + siteNum + "] can not write redo log: "
+                + e);
+        this.closeLog();
+        failed = true;
+    }
+
+    private void openLog() {
+        File file = new File(directory, name(siteNum, sequence, LOG));
+        try {
+            log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("site [" + siteNum + "] can not open redo log "
+                    + file + ": " + e);
+            log = null;
+            failed = true;
+        }
+    }
+
+    private void closeLog() {
+        if (log == null)
+            return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            // forced after each record already
+        }
+        log = null;
+    }
+
+    /**
+     * Wait for the checkpoints taken to be written, and stop the writer
+     */
+    public void close() {
+        this.closeLog();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(SiteDump dump, int number, boolean full) {
+        File file = new File(directory, name(siteNum, number, full ? FULL
+                : DELTA));
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            FileChannel channel = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                dump.writeCheckpoint(channel);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.writeFailed(file, temp, e);
+            return;
+        } catch (RuntimeException e) {
+            this.writeFailed(file, temp, e);
+            return;
+        }
+        // the older files and the logs they replace are not needed anymore
+        if (full) {
+            for (File older : files(directory, siteNum, FULL + "|" + DELTA)
+                    .headMap(number).values())
+                older.delete();
+            for (File older : files(directory, siteNum, LOG).headMap(number,
+                    true).values())
+                older.delete();
+        }
+    }
+
+    private void writeFailed(File file, File temp, Exception e) {
+        System.err.println("site [" + siteNum + "] can not write checkpoint "
+                + file + ": " + e);
+        temp.delete();
+        failed = true;
+    }
+
+    /**
+     * Read the last full checkpoint of a site, the deltas following it, and
+     * replay the redo logs after them
+     *
+     * @param directory
+     * @param siteNum
+     * @param initial
+     *            the values the site started with, the logs are replayed on
+     *            them if there is no full checkpoint
+     * @return the values of the resources, null if there is neither
+     *         checkpoint nor log
+     * @throws RuntimeException
+     *             if a checkpoint or a log can not be read
+     */
+    public static Map<String, Long> load(File directory, int siteNum,
+            Map<String, Long> initial) {
+        TreeMap<Integer, File> files = files(directory, siteNum, FULL + "|"
+                + DELTA);
+        TreeMap<Integer, File> logs = files(directory, siteNum, LOG);
+        Integer base = null;
+        for (Map.Entry<Integer, File> entry : files.entrySet())
+            if (entry.getValue().getName().endsWith(FULL))
+                base = entry.getKey();
+        if (base == null && logs.isEmpty())
+            return null;
+
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        int expected = 0;
+        if (base == null) {
+            values.putAll(initial);
+        } else {
+            expected = base;
+            for (Map.Entry<Integer, File> entry : files.tailMap(base)
+                    .entrySet()) {
+                // a delta after a missing one does not have all the changes
+                if (entry.getKey() != expected)
+                    break;
+                read(entry.getValue(), values, false);
+                expected++;
+            }
+        }
+        // the changes after the last checkpoint read
+        for (File file : logs.tailMap(expected).values())
+            read(file, values, true);
+        return values;
+    }
+
+    private static void read(File file, Map<String, Long> values, boolean log) {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                if (log)
+                    SiteDump.applyLog(channel, values);
+                else
+                    SiteDump.applyCheckpoint(channel, values);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("can not read "
+                    + (log ? "redo log " : "checkpoint ") + file, e);
+        }
+    }
+
+    private static String name(int siteNum, int number, String kind) {
+        return "site" + siteNum + "-" + number + "." + kind;
+    }
+
+    /**
+     * The checkpoint files or the logs of a site, by sequence number
+     *
+     * @param kinds
+     *            the extensions, separated by |
+     */
+    private static TreeMap<Integer, File> files(File directory, int siteNum,
+            String kinds) {
+        Pattern pattern = Pattern.compile("site" + siteNum + "-(\\d+)\\.("
+                + kinds + ")");
+        TreeMap<Integer, File> result = new TreeMap<Integer, File>();
+        File[] listed = directory.listFiles();
+        if (listed == null)
+            return result;
+        for (File file : listed) {
+            Matcher matcher = pattern.matcher(file.getName());
+            if (matcher.matches())
+                result.put(Integer.parseInt(matcher.group(1)), file);
+        }
+        return result;
+    }
+}
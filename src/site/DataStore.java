@@ -0,0 +1,48 @@
+package site;
+
+/**
+ * Committed values of a site, one fixed-size slot of long per resource. The
+ * slot of a resource is given by the data manager. <br>
+ * <br>
+ * The backend is chosen when the site is constructed, see {@link ImpSite}.
+ * 
+ */
+public interface DataStore {
+
+    /**
+     * Value of a slot
+     * 
+     * @param slot
+     * @return the value, 0 if never written
+     */
+    long get(int slot);
+
+    /**
+     * Write the value of a slot in place
+     * 
+     * @param slot
+     * @param value
+     */
+    void put(int slot, long value);
+
+    /**
+     * Make sure slots 0 .. slots-1 can be accessed
+     * 
+     * @param slots
+     */
+    void ensureCapacity(int slots);
+
+    /**
+     * A view of the first given number of slots that is not changed by later
+     * writes.
+     * 
+     * @param slots
+     * @return view of slot 0 .. slots-1
+     */
+    StoreView snapshot(int slots);
+
+    /**
+     * Release the resources held by the store. It can not be used after.
+     */
+    void close();
+}
@@ -0,0 +1,45 @@
+package site;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the values in a long array on the heap.
+ * 
+ */
+public class HeapDataStore implements DataStore {
+
+    private long[] values;
+
+    public HeapDataStore() {
+        this.values = new long[16];
+    }
+
+    @Override
+    public long get(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    public void put(int slot, long value) {
+        values[slot] = value;
+    }
+
+    @Override
+    public void ensureCapacity(int slots) {
+        if (slots > values.length)
+            values = Arrays.copyOf(values, Math.max(slots, values.length * 2));
+    }
+
+    /**
+     * Copies the array, cost is linear in the number of slots
+     */
+    @Override
+    public StoreView snapshot(int slots) {
+        return new ArrayView(Arrays.copyOf(values, slots));
+    }
+
+    @Override
+    public void close() {
+        values = null;
+    }
+}
@@ -1,15 +1,27 @@
 package site;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
 
 /**
+ * Values are stored as long in a {@link DataStore} indexed by the slot of the
+ * resource, see {@link ResourceIndex}. They are turned into String only for
+ * display. <br>
+ * <br>
+ * Read only transactions read a view of the committed data as of their begin
+ * time stamp. The view is resolved when the first read of the transaction
+ * comes. It reads the current data, except the slots overwritten since the
+ * time stamp, whose older values are kept per slot for the running read only
+ * transactions.
  * 
  * @author jinglun
  * 
@@ -17,9 +29,14 @@ import java.util.Set;
 public class ImpDataManager {
 
     /**
-     * data in DB, <resource, value> i.e. <x3, 30>
+     * slot of each resource on this site
      */
-    private Map<String, String> data;
+    private final ResourceIndex index;
+
+    /**
+     * data in DB, value of each slot, i.e. data.get(slotOf(x3)) = 30
+     */
+    private final DataStore data;
 
     /**
      * include resource which shows only in this site
@@ -27,22 +44,82 @@ public class ImpDataManager {
     private final Set<String> unique;
 
     /**
-     * writeLog contains dirty data which has not been committed, The key of
-     * outer map is transaction ID. The inner map is <resource, value> pair
+     * writeLog contains dirty data which has not been committed, The key is
+     * transaction ID. The buffer has the <slot, value> pairs
+     */
+    private HashMap<String, WriteBuffer> writeLog;
+
+    /**
+     * Snapshot for read only transactions, clean data, a view of the
+     * committed data when the transaction begins.
+     */
+    private HashMap<String, StoreView> snapshot;
+
+    /**
+     * commit time stamp of the last commit that wrote data, 0 for the initial
+     * data
+     */
+    private int lastCommit;
+
+    /**
+     * Older values of the slots overwritten by the commits a running read
+     * only transaction began before. For each slot, map from the commit time
+     * stamp to the value it overwrote.
+     */
+    private HashMap<Integer, TreeMap<Integer, Long>> versions;
+
+    /**
+     * The slots overwritten by each commit in {@link #versions}
+     */
+    private TreeMap<Integer, int[]> overwritten;
+
+    /**
+     * Read only transactions begun after this time stamp can be served, the
+     * values overwritten after it are kept
+     */
+    private int versionsFrom;
+
+    /**
+     * For each slot, the time stamp from which the copy has been up to date
+     * without interruption. Integer.MAX_VALUE while a replicated resource
+     * has not been written since the site recovered.
      */
-    private HashMap<String, HashMap<String, String>> writeLog;
+    private int[] validFrom;
 
     /**
-     * A read log, the key is transaction ID. The set contains resources name
-     * which are accessed by given transaction. Doesn't contains log of read
-     * only transaction.
+     * slots committed or added since the last checkpoint
      */
-    private HashMap<String, Set<String>> readLog;
+    private BitSet dirty;
 
     /**
-     *  Snapshot for read only transactions, clean data.
+     * resources removed since the last checkpoint
      */
-    private HashMap<String, HashMap<String, String>> snapshot;
+    private List<String> dropped;
+
+    /**
+     * slots committed or added since the last record of the redo log, null
+     * without redo log
+     */
+    private BitSet unlogged;
+
+    /**
+     * resources removed since the last record of the redo log, null without
+     * redo log
+     */
+    private List<String> droppedUnlogged;
+
+    /**
+     * constructor of DataManager, keeping the data in a
+     * {@link PersistentDataStore}
+     * 
+     * @param data
+     *            a HashMap of <variable, value> pairs
+     * @param unique
+     *            a set of resource name of unique variables
+     */
+    public ImpDataManager(Map<String, Long> data, Set<String> unique) {
+        this(data, unique, new PersistentDataStore());
+    }
 
     /**
      * constructor of DataManager
@@ -51,34 +128,43 @@ public class ImpDataManager {
      *            a HashMap of <variable, value> pairs
      * @param unique
      *            a set of resource name of unique variables
+     * @param store
+     *            the backend holding committed values, an empty one
      */
-    public ImpDataManager(Map<String, String> data, Set<String> unique) {
-        this.data = data;
+    public ImpDataManager(Map<String, Long> data, Set<String> unique,
+            DataStore store) {
+        this.index = new ResourceIndex();
+        this.data = store;
+        this.data.ensureCapacity(data.size());
+        for (Map.Entry<String, Long> entry : data.entrySet())
+            this.data.put(index.add(entry.getKey()), entry.getValue());
         this.unique = unique;
-        writeLog = new HashMap<String, HashMap<String, String>>();
-        readLog = new HashMap<String, Set<String>>();
-        snapshot = new HashMap<String, HashMap<String, String>>();
+        writeLog = new HashMap<String, WriteBuffer>();
+        snapshot = new HashMap<String, StoreView>();
+        lastCommit = 0;
+        versions = new HashMap<Integer, TreeMap<Integer, Long>>();
+        overwritten = new TreeMap<Integer, int[]>();
+        versionsFrom = 0;
+        validFrom = new int[Math.max(16, index.capacity())];
+        dirty = new BitSet();
+        dropped = new ArrayList<String>();
     }
 
     Set<String> getReplicatedResource() {
-        Set<String> result = new HashSet<String>(data.keySet());
+        Set<String> result = new HashSet<String>(index.names());
         result.removeAll(unique);
         return result;
     }
 
-    HashMap<String, Set<String>> getReadLog() {
-        return readLog;
-    }
-
-    HashMap<String, HashMap<String, String>> getWriteLog() {
+    HashMap<String, WriteBuffer> getWriteLog() {
         return writeLog;
     }
 
-    Map<String, String> getData() {
+    DataStore getData() {
         return data;
     }
 
-    HashMap<String, HashMap<String, String>> getSnapshot() {
+    HashMap<String, StoreView> getSnapshot() {
         return snapshot;
     }
 
@@ -86,28 +172,42 @@ public class ImpDataManager {
         return unique;
     }
 
+    /**
+     * The slot of a resource on this site
+     * 
+     * @param resource
+     * @return the slot
+     * @throws RuntimeException
+     *             if there is no such resource
+     */
+    private int slotOf(String resource) {
+        int slot = index.slotOf(resource);
+        if (slot < 0)
+            throw new RuntimeException("no requested resource in this site");
+        return slot;
+    }
+
     /**
      * Log a write to writeLog
      * 
      * @param transaction
      *            Transaction ID as String
-     * @param resource
-     *            resource name as String
+     * @param slot
+     *            slot of the resource
      * @param value
      *            new value of given write transaction
      */
-    private void logTransaction(String transaction, String resource,
-            String value) {
-        if (!writeLog.containsKey(transaction)) {
-            writeLog.put(transaction, new HashMap<String, String>());
+    private void logTransaction(String transaction, int slot, long value) {
+        WriteBuffer tmpLog = writeLog.get(transaction);
+        if (tmpLog == null) {
+            tmpLog = new WriteBuffer();
+            writeLog.put(transaction, tmpLog);
         }
-        HashMap<String, String> tmpLog = writeLog.get(transaction);
-        tmpLog.put(resource, value);
-        writeLog.put(transaction, tmpLog);
+        tmpLog.put(slot, value);
     }
 
     /**
-     * Read value of given resource, return empty string if no such resource
+     * Read value of given resource
      * 
      * @param transaction
      *            transaction ID as String
@@ -117,48 +217,108 @@ public class ImpDataManager {
      *            true if it is a read only transaction
      * @return
      */
-    public String read(String transaction, String resource, boolean isReadOnly) {
+    public long read(String transaction, String resource, boolean isReadOnly) {
         if (isReadOnly) {
             if (!snapshot.containsKey(transaction)) {
                 throw new IllegalArgumentException(
                         "A read transaction which has no snapshot");
             }
-            if (!snapshot.get(transaction).containsKey(resource)) {
+            StoreView view = snapshot.get(transaction);
+            int slot = index.slotOf(resource);
+            if (slot < 0 || slot >= view.size()) {
                 throw new IllegalArgumentException(
                         "snapshot doesn't contains resource: " + resource
                                 + "for transaction: " + transaction);
             }
-            return snapshot.get(transaction).get(resource);
+            return view.get(slot);
         } else {
+            int slot = slotOf(resource);
             // check if resource is in a write log
-            if (this.writeLog.containsKey(transaction)) {
-                if (writeLog.get(transaction).containsKey(resource)) {
-                    // Add to read log
-                    if (readLog.containsKey(transaction)) {
-                        readLog.get(transaction).add(resource);
-                    } else {
-                        HashSet<String> tmpSet = new HashSet<String>();
-                        tmpSet.add(resource);
-                        readLog.put(transaction, tmpSet);
-                    }
-                    return writeLog.get(transaction).get(resource);
-                }
+            WriteBuffer tmpLog = this.writeLog.get(transaction);
+            if (tmpLog != null) {
+                int position = tmpLog.indexOf(slot);
+                if (position >= 0)
+                    return tmpLog.valueAt(position);
             }
             // read from database directly
-            if (this.data.get(resource) == null) {
-                System.out.println(resource);
-                throw new RuntimeException("no requested resource in this site");
-            }
-            // Add to read log
-            if (readLog.containsKey(transaction)) {
-                readLog.get(transaction).add(resource);
-            } else {
-                HashSet<String> tmpSet = new HashSet<String>();
-                tmpSet.add(resource);
-                readLog.put(transaction, tmpSet);
+            return this.data.get(slot);
+        }
+    }
+
+    /**
+     * Read value of given resource for a read only transaction, as of its
+     * begin time stamp. The view of the transaction is resolved at its first
+     * read on this site.
+     * 
+     * @param transaction
+     * @param resource
+     * @param timestamp
+     *            begin time stamp of the transaction
+     * @return
+     */
+    public long readOnly(String transaction, String resource, int timestamp) {
+        StoreView view = snapshot.get(transaction);
+        if (view == null) {
+            view = this.versionAt(timestamp);
+            if (view == null) {
+                throw new IllegalArgumentException("no version at ["
+                        + timestamp + "] for transaction: " + transaction);
             }
-            return this.data.get(resource);
+            snapshot.put(transaction, view);
         }
+        return this.read(transaction, resource, true);
+    }
+
+    /**
+     * The committed data seen by a transaction begun at the time stamp. The
+     * slots it has are the ones of the site now.
+     * 
+     * @param timestamp
+     * @return the view, null if the version is not kept
+     */
+    private StoreView versionAt(final int timestamp) {
+        if (timestamp <= versionsFrom)
+            return null;
+        final int size = index.capacity();
+        return new StoreView() {
+            @Override
+            public long get(int slot) {
+                // the value overwritten by the first commit after it
+                TreeMap<Integer, Long> older = versions.get(slot);
+                Map.Entry<Integer, Long> entry = older == null ? null : older
+                        .ceilingEntry(timestamp);
+                return entry == null ? data.get(slot) : entry.getValue();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Check if this copy of the resource can be read by a read only
+     * transaction begun at the time stamp, that is the copy has been up to
+     * date since then and the version is kept.
+     * 
+     * @param resource
+     * @param timestamp
+     * @return true if it can be read
+     */
+    public boolean canRead(String resource, int timestamp) {
+        int slot = index.slotOf(resource);
+        return slot >= 0 && validFrom[slot] < timestamp
+                && timestamp > versionsFrom;
+    }
+
+    /**
+     * The site recovers, the replicated resources are out of date until they
+     * are written.
+     */
+    public void recover() {
+        for (String resource : this.getReplicatedResource())
+            validFrom[index.slotOf(resource)] = Integer.MAX_VALUE;
     }
 
     /**
@@ -168,13 +328,14 @@ public class ImpDataManager {
      * @param resource
      * @param value
      */
-    public void write(String transaction, String resource, String value) {
-        logTransaction(transaction, resource, value);
+    public void write(String transaction, String resource, long value) {
+        logTransaction(transaction, slotOf(resource), value);
     }
 
     /**
      * Create a snapshot for read only transaction. This method should be called
-     * when a new read only transaction is established.
+     * when a new read only transaction is established. It is O(1) with the
+     * default {@link PersistentDataStore}.
      * 
      * @param transaction
      */
@@ -182,48 +343,118 @@ public class ImpDataManager {
         if (snapshot.containsKey(transaction)) {
             throw new IllegalArgumentException("snapshot already exist");
         }
-        snapshot.put(transaction, new HashMap<String, String>(data));
+        snapshot.put(transaction, data.snapshot(index.capacity()));
     }
 
     /**
-     * Write all data to database.
+     * Write all data to database. If some running read only transaction began
+     * before this commit, the values it overwrites are kept as versions.
+     * Versions not needed by any running read only transaction are dropped.
      * 
      * @param transaction
-     * @return a set of resources that have been accessed by given transaction
-     *         (R,W)
+     * @param timestamp
+     *            commit time stamp
+     * @param watermark
+     *            oldest begin time stamp of the running read only
+     *            transactions, Integer.MAX_VALUE if there is none
+     */
+    public void commit(String transaction, int timestamp, int watermark) {
+        this.install(transaction, timestamp, watermark);
+        this.dropVersions(watermark);
+        terminateTransaction(transaction);
+    }
+
+    /**
+     * Commit many transactions in one pass, in the given order. It is the
+     * same as committing them one by one, but the versions are dropped once.
+     * 
+     * @param transactions
+     * @param timestamps
+     *            commit time stamp of each transaction, increasing
+     * @param watermark
+     *            oldest begin time stamp of the running read only
+     *            transactions, Integer.MAX_VALUE if there is none
      */
-    public Set<String> commit(String transaction) {
-        if (writeLog.get(transaction) != null)
-            this.data.putAll(writeLog.get(transaction));
-        return terminateTransaction(transaction);
+    public void commitAll(String[] transactions, int[] timestamps,
+            int watermark) {
+        if (transactions.length != timestamps.length)
+            throw new IllegalArgumentException(
+                    "one time stamp for each transaction");
+        for (int i = 0; i < transactions.length; i++) {
+            this.install(transactions[i], timestamps[i], watermark);
+            terminateTransaction(transactions[i]);
+        }
+        this.dropVersions(watermark);
     }
 
     /**
-     * clear write/read log and snapshot. Only keep the database unchanged.
+     * Write the buffer of the transaction in place, keeping the values it
+     * overwrites as versions if a running read only transaction needs them.
+     * Otherwise no transaction begun before it can be served after.
+     */
+    private void install(String transaction, int timestamp, int watermark) {
+        WriteBuffer tmpLog = writeLog.get(transaction);
+        if (tmpLog == null || tmpLog.size() == 0)
+            return;
+        boolean keep = watermark < timestamp;
+        if (keep)
+            overwritten.put(timestamp, new int[tmpLog.size()]);
+        else
+            versionsFrom = timestamp;
+        for (int i = 0; i < tmpLog.size(); i++) {
+            int slot = tmpLog.slotAt(i);
+            if (keep) {
+                TreeMap<Integer, Long> older = versions.get(slot);
+                if (older == null) {
+                    older = new TreeMap<Integer, Long>();
+                    versions.put(slot, older);
+                }
+                older.put(timestamp, this.data.get(slot));
+                overwritten.get(timestamp)[i] = slot;
+            }
+            this.data.put(slot, tmpLog.valueAt(i));
+            this.changed(slot);
+            if (validFrom[slot] == Integer.MAX_VALUE)
+                validFrom[slot] = timestamp;
+        }
+        lastCommit = timestamp;
+    }
+
+    /**
+     * The oldest reader needs the values overwritten by the commits after its
+     * time stamp only
+     */
+    private void dropVersions(int watermark) {
+        SortedMap<Integer, int[]> old = overwritten.headMap(watermark);
+        if (old.isEmpty())
+            return;
+        versionsFrom = Math.max(versionsFrom, old.lastKey());
+        for (Map.Entry<Integer, int[]> entry : old.entrySet())
+            for (int slot : entry.getValue()) {
+                TreeMap<Integer, Long> older = versions.get(slot);
+                older.remove(entry.getKey());
+                if (older.isEmpty())
+                    versions.remove(slot);
+            }
+        old.clear();
+    }
+
+    /**
+     * clear write log and snapshot. Only keep the database unchanged.
      */
     public void fail() {
-        writeLog = new HashMap<String, HashMap<String, String>>();
-        readLog = new HashMap<String, Set<String>>();
-        snapshot = new HashMap<String, HashMap<String, String>>();
+        writeLog = new HashMap<String, WriteBuffer>();
+        snapshot = new HashMap<String, StoreView>();
     }
 
     /**
-     * Terminate one given transaction, clear it's write and read log.
+     * Terminate one given transaction, clear it's write log.
      * 
      * @param transaction
-     * @return a set of resource which are accessed by given transaction
      */
-    public Set<String> terminateTransaction(String transaction) {
-        Set<String> result = new HashSet<String>();
-        if (writeLog.containsKey(transaction)) {
-            result.addAll(writeLog.get(transaction).keySet());
-            writeLog.remove(transaction);
-        }
-        if (readLog.containsKey(transaction)) {
-            result.addAll(readLog.get(transaction));
-            readLog.remove(transaction);
-        }
-        return result;
+    public void terminateTransaction(String transaction) {
+        writeLog.remove(transaction);
+        snapshot.remove(transaction);
     }
 
     /**
@@ -234,33 +465,128 @@ public class ImpDataManager {
      *         the resource
      */
     public String dumpSite() {
-
-        Map<String, String> tempM = new HashMap<String, String>(data);
-        List<Map.Entry<String, String>> tempL = new LinkedList<Map.Entry<String, String>>();
-        for (Map.Entry<String, String> entry : tempM.entrySet()) {
-            tempL.add(entry);
+        StringBuffer buffer = new StringBuffer("[");
+        for (int slot : index.sortedSlots()) {
+            if (buffer.length() > 1)
+                buffer.append(", ");
+            buffer.append(index.nameOf(slot));
+            buffer.append('=');
+            buffer.append(data.get(slot));
         }
+        buffer.append(']');
+        return buffer.toString();
+    }
 
-        Collections.sort(tempL, new Comparator<Map.Entry<String, String>>() {
-            @Override
-            public int compare(Map.Entry<String, String> o1,
-                    Map.Entry<String, String> o2) {
-                return Integer.valueOf(o1.getKey().substring(1)).compareTo(
-                        Integer.valueOf(o2.getKey().substring(1)));
-            }
+    /**
+     * A dump of the committed data as of now, in resource order, to be
+     * written as a full checkpoint while the site goes on. Only the names are copied, the values
+     * are read from a snapshot, which is O(1) with the default
+     * {@link PersistentDataStore}.
+     * 
+     * @return the dump
+     */
+    public SiteDump openDump() {
+        int[] slots = index.sortedSlots();
+        String[] names = new String[slots.length];
+        for (int i = 0; i < slots.length; i++)
+            names[i] = index.nameOf(slots[i]);
+        return new SiteDump(names, slots, new String[0],
+                data.snapshot(index.capacity()), lastCommit);
+    }
+
+    /**
+     * A dump for a checkpoint, see {@link Checkpointer}. The resources
+     * changed after it go to the next one.
+     * 
+     * @param full
+     *            true for all the resources, false for the ones committed,
+     *            added or removed since the last checkpoint
+     * @return the dump
+     */
+    public SiteDump openCheckpoint(boolean full) {
+        SiteDump result;
+        if (full)
+            result = this.openDump();
+        else
+            result = this.openChanges(dirty, dropped,
+                    data.snapshot(index.capacity()));
+        dirty.clear();
+        dropped.clear();
+        return result;
+    }
+
+    /**
+     * Keep the changes for the redo log of the checkpoints, see
+     * {@link #openRecord()}. They are not kept by default.
+     * 
+     * @param redoLog
+     */
+    public void setRedoLog(boolean redoLog) {
+        unlogged = redoLog ? new BitSet() : null;
+        droppedUnlogged = redoLog ? new ArrayList<String>() : null;
+    }
+
+    /**
+     * A record of the redo log, the resources committed, added or removed
+     * since the record before it. It reads the committed values in place
+     * instead of taking a snapshot, so it must be written before the data
+     * changes again.
+     * 
+     * @return the record
+     */
+    public SiteDump openRecord() {
+        if (unlogged == null)
+            throw new IllegalStateException("no redo log is kept");
+        SiteDump result = this.openChanges(unlogged, droppedUnlogged,
+                new StoreView() {
+                    @Override
+                    public long get(int slot) {
+                        return data.get(slot);
+                    }
+
+                    @Override
+                    public int size() {
+                        return index.capacity();
+                    }
+                });
+        unlogged.clear();
+        droppedUnlogged.clear();
+        return result;
+    }
 
-        });
+    /**
+     * A dump of the slots changed and the resources removed
+     */
+    private SiteDump openChanges(BitSet changed, List<String> removed,
+            StoreView view) {
+        int[] slots = new int[changed.cardinality()];
+        String[] names = new String[slots.length];
+        int count = 0;
+        for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed
+                .nextSetBit(slot + 1)) {
+            // removed since, it is in removed
+            if (index.nameOf(slot) == null)
+                continue;
+            slots[count] = slot;
+            names[count++] = index.nameOf(slot);
+        }
+        return new SiteDump(Arrays.copyOf(names, count), Arrays.copyOf(slots,
+                count), removed.toArray(new String[removed.size()]), view,
+                lastCommit);
+    }
 
-        return tempL.toString();
+    /**
+     * @return number of slots changed since the last checkpoint
+     */
+    public int dirtyCount() {
+        return dirty.cardinality() + dropped.size();
+    }
 
-        // StringBuffer buffer = new StringBuffer();
-        // for (Map.Entry<String, String> entry : data.entrySet()){
-        // buffer.append(entry.getKey());
-        // buffer.append(": ");
-        // buffer.append(entry.getValue());
-        // buffer.append(" ");
-        // }
-        // return buffer.toString();
+    /**
+     * @return number of resources on this site
+     */
+    public int size() {
+        return index.names().size();
     }
 
     /**
@@ -270,13 +596,71 @@ public class ImpDataManager {
      * @return
      */
     public String dumpResource(String resource) {
-        if (data.containsKey(resource)) {
-            return resource + ": " + data.get(resource) + " ";
+        int slot = index.slotOf(resource);
+        if (slot >= 0) {
+            return resource + ": " + data.get(slot) + " ";
         } else {
             return resource + ": NULL ";
         }
     }
 
+    /**
+     * Committed value of given resource, used to copy the resource to another
+     * site.
+     * 
+     * @param resource
+     * @return the committed value
+     */
+    public long committedValue(String resource) {
+        return data.get(slotOf(resource));
+    }
+
+    /**
+     * Add a copy of a resource moved from another site.
+     * 
+     * @param resource
+     * @param value
+     *            committed value of the resource
+     * @param isUnique
+     *            true if this is the only copy of the resource
+     */
+    public void addResource(String resource, long value, boolean isUnique) {
+        int slot = index.add(resource);
+        data.ensureCapacity(slot + 1);
+        data.put(slot, value);
+        if (slot >= validFrom.length)
+            validFrom = Arrays.copyOf(validFrom, validFrom.length * 2);
+        // no version before it, as if written by the last commit
+        validFrom[slot] = lastCommit;
+        this.changed(slot);
+        if (isUnique)
+            unique.add(resource);
+    }
+
+    /**
+     * Remove the copy of a resource moved to another site. There should be no
+     * transaction accessing it.
+     * 
+     * @param resource
+     */
+    public void removeResource(String resource) {
+        if (index.remove(resource) >= 0) {
+            dropped.add(resource);
+            if (droppedUnlogged != null)
+                droppedUnlogged.add(resource);
+        }
+        unique.remove(resource);
+    }
+
+    /**
+     * A slot has been committed or added
+     */
+    private void changed(int slot) {
+        dirty.set(slot);
+        if (unlogged != null)
+            unlogged.set(slot);
+    }
+
     /**
      * Check if requested resource is on this site
      * 
@@ -284,6 +668,17 @@ public class ImpDataManager {
      * @return
      */
     public boolean containsResource(String resource) {
-        return data.containsKey(resource);
+        return index.slotOf(resource) >= 0;
+    }
+
+    /**
+     * The resources of this site in a range, from the ordered index
+     * 
+     * @param low
+     * @param high
+     * @return the resources from low to high included, in order
+     */
+    public SortedSet<String> resourcesBetween(String low, String high) {
+        return index.namesBetween(low, high);
     }
 }
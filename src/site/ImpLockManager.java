@@ -2,17 +2,33 @@ package site;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import site.entity.LockType;
 
+import entity.ResourceOrder;
+
 /**
  * This implementation overwrite write lock onto read lock. That each
  * transaction can have only one lock on one resources
  * 
  * <br> remove by (resource,transaction,type) is not supported
  * 
+ * <br> The locks are kept in resource order, so the write locks inside a range
+ * are found without looking at the others. A range lock is a read lock on all
+ * resources from its low to its high end, including the ones that are not on
+ * the site yet, so a transaction scanning the range sees no phantom.
+ * 
+ * <br> Each transaction with locks also has a lock on the whole site, IS or IX
+ * while it locks single resources. When it holds more than the escalation
+ * threshold of them, they are replaced by one S or X lock on the site if the
+ * other transactions allow it. A read or write covered by the site lock then
+ * adds no entry.
+ * 
  * @see LockManager
  * @author Daoan XU
  * 
@@ -24,7 +40,7 @@ class ImpLockManager implements LockManager {
      * Map that maps "resource" to "lockEntity of the resource" <br>
      * Containing all lock information on the site.
      */
-    private Map<String, ResourceLock> locksOfR;
+    private TreeMap<String, ResourceLock> locksOfR;
 
     /**
      * Map that maps from "transaction" to "resources" that it have lock on it
@@ -32,9 +48,41 @@ class ImpLockManager implements LockManager {
      */
     private Map<String, Set<String>> resourcesOfT;
 
+    /**
+     * Map from "transaction" to the ranges it has a range lock on, each range
+     * is {low, high}
+     */
+    private Map<String, List<String[]>> rangesOfT;
+
+    /**
+     * Map from "transaction" to the mode of its lock on the site
+     */
+    private Map<String, LockType> modeOfT;
+
+    /**
+     * Default number of resource locks a transaction may hold before they are
+     * escalated
+     */
+    static final int ESCALATION = 64;
+
+    private final int escalation;
+
     public ImpLockManager() {
-        this.locksOfR = new HashMap<String, ResourceLock>();
+        this(ESCALATION);
+    }
+
+    /**
+     * @param escalation
+     *            number of resource locks a transaction may hold before they
+     *            are escalated to a site lock
+     */
+    public ImpLockManager(int escalation) {
+        this.locksOfR = new TreeMap<String, ResourceLock>(
+                ResourceOrder.INSTANCE);
         this.resourcesOfT = new HashMap<String, Set<String>>();
+        this.rangesOfT = new HashMap<String, List<String[]>>();
+        this.modeOfT = new HashMap<String, LockType>();
+        this.escalation = escalation;
     }
 
     @Override
@@ -46,9 +94,163 @@ class ImpLockManager implements LockManager {
         return true;
     }
 
+    @Override
+    public boolean isMigrating(String resource) {
+        ResourceLock thisLock = locksOfR.get(resource);
+        return thisLock != null && thisLock.getType() == LockType.MIGRATION;
+    }
+
+    @Override
+    public void lockForMigration(String resource) {
+        ResourceLock thisLock = locksOfR.get(resource);
+        if (thisLock != null && thisLock.getType() != null) {
+            System.err
+                    .println("error: site.ImpLockManager.lockForMigration\n  ["
+                            + resource + "] is locked by " + thisLock);
+            return;
+        }
+        thisLock = new ResourceLock(resource);
+        thisLock.addLock(resource, null, LockType.MIGRATION);
+        this.locksOfR.put(resource, thisLock);
+    }
+
+    @Override
+    public boolean releaseMigration(String resource) {
+        if (!this.isMigrating(resource))
+            return false;
+        this.locksOfR.remove(resource);
+        return true;
+    }
+
     @Override
     public Set<String> checkConflict(String resource, String transaction,
             LockType requestType) {
+        Set<String> conflicts = this.pointConflict(resource, transaction,
+                requestType);
+        if (conflicts == null)
+            return conflicts;
+
+        // the site locks of other transactions must allow the intention lock
+        Set<String> result = this.siteHolders(transaction,
+                intention(requestType));
+
+        // a write also conflicts with the ranges of other transactions
+        if (requestType == LockType.WRITE)
+            result.addAll(this.rangeHolders(resource, transaction));
+        if (result.isEmpty())
+            return conflicts;
+        result.addAll(conflicts);
+        return result;
+    }
+
+    /**
+     * The transactions other than the given one whose site lock does not
+     * allow the mode
+     */
+    private Set<String> siteHolders(String transaction, LockType mode) {
+        Set<String> result = new HashSet<String>();
+        for (Map.Entry<String, LockType> entry : modeOfT.entrySet())
+            if (!entry.getKey().equals(transaction)
+                    && !compatible(entry.getValue(), mode))
+                result.add(entry.getKey());
+        return result;
+    }
+
+    /**
+     * The intention lock on the site for a lock on a resource
+     */
+    private static LockType intention(LockType requestType) {
+        return requestType == LockType.WRITE ? LockType.IX : LockType.IS;
+    }
+
+    /**
+     * Compatibility of two site locks held by different transactions
+     */
+    private static boolean compatible(LockType held, LockType mode) {
+        if (held == LockType.X || mode == LockType.X)
+            return false;
+        if (held == LockType.IS || mode == LockType.IS)
+            return true;
+        if (held == LockType.IX && mode == LockType.IX)
+            return true;
+        if (held == LockType.S && mode == LockType.S)
+            return true;
+        return false;
+    }
+
+    /**
+     * The weakest site lock allowing all that both modes allow
+     */
+    private static LockType join(LockType held, LockType mode) {
+        if (held == null)
+            return mode;
+        if (held == LockType.X || mode == LockType.X)
+            return LockType.X;
+        boolean shared = held == LockType.S || held == LockType.SIX
+                || mode == LockType.S || mode == LockType.SIX;
+        boolean exclusive = held == LockType.IX || held == LockType.SIX
+                || mode == LockType.IX || mode == LockType.SIX;
+        if (shared)
+            return exclusive ? LockType.SIX : LockType.S;
+        return exclusive ? LockType.IX : LockType.IS;
+    }
+
+    /**
+     * Whether a site lock already covers a lock on any of its resources
+     */
+    private static boolean covers(LockType mode, LockType requestType) {
+        if (mode == LockType.X)
+            return true;
+        return requestType == LockType.READ
+                && (mode == LockType.S || mode == LockType.SIX);
+    }
+
+    /**
+     * The transactions other than the given one with a range lock covering
+     * the resource
+     */
+    private Set<String> rangeHolders(String resource, String transaction) {
+        Set<String> result = new HashSet<String>();
+        for (Map.Entry<String, List<String[]>> entry : rangesOfT.entrySet()) {
+            if (entry.getKey().equals(transaction))
+                continue;
+            for (String[] range : entry.getValue())
+                if (ResourceOrder.between(resource, range[0], range[1])) {
+                    result.add(entry.getKey());
+                    break;
+                }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> checkRangeConflict(String low, String high,
+            String transaction) {
+        Set<String> result = this.siteHolders(transaction, LockType.IS);
+        for (ResourceLock thisLock : locksOfR.subMap(low, true, high, true)
+                .values()) {
+            if (thisLock.getType() == LockType.MIGRATION)
+                return null;
+            if (thisLock.getType() == LockType.WRITE)
+                for (String holder : thisLock.getTransactions())
+                    if (!holder.equals(transaction))
+                        result.add(holder);
+        }
+        return result;
+    }
+
+    @Override
+    public void setRangeLock(String low, String high, String transaction) {
+        if (!this.rangesOfT.containsKey(transaction))
+            this.rangesOfT.put(transaction, new LinkedList<String[]>());
+        this.rangesOfT.get(transaction).add(new String[] { low, high });
+    }
+
+    /**
+     * Conflicts with the lock on the resource itself
+     */
+    private Set<String> pointConflict(String resource, String transaction,
+            LockType requestType) {
 
         ResourceLock thisLock = locksOfR.get(resource);
 
@@ -65,6 +267,13 @@ class ImpLockManager implements LockManager {
             return null;
         }
 
+        // This resource is being migrated to this site
+        if (thisType == LockType.MIGRATION) {
+            System.err.println("error: site.ImpLockManager.chechConflict\n  ["
+                    + resource + "] is under migration");
+            return null;
+        }
+
         // If the current lock or the requesting lock contains WRITE
         if (thisType == LockType.WRITE || requestType == LockType.WRITE) {
             // If the are from the same transaction, then OK
@@ -103,6 +312,14 @@ class ImpLockManager implements LockManager {
 
         ResourceLock thisLock = locksOfR.get(resource);
 
+        // The resource can not be accessed until the handoff is done
+        if (thisLock != null && thisLock.getType() == LockType.MIGRATION) {
+            System.err
+                    .println("error: site.ImpLockManager.setLock\n  ["
+                            + resource + "] is under migration");
+            return;
+        }
+
         // If this resource is under Recovery
         if (thisLock != null && thisLock.getType() == LockType.RECOVERY) {
             if (requestType == LockType.READ)
@@ -116,6 +333,11 @@ class ImpLockManager implements LockManager {
             return;
         }
 
+        // The site lock of the transaction is enough
+        LockType mode = this.modeOfT.get(transaction);
+        if (covers(mode, requestType))
+            return;
+
         // There is no lock on this resource yet.
         if (thisLock == null) {
             thisLock = new ResourceLock(resource);
@@ -128,12 +350,51 @@ class ImpLockManager implements LockManager {
             this.resourcesOfT.put(transaction, new HashSet<String>());
         this.resourcesOfT.get(transaction).add(resource);
 
+        this.modeOfT.put(transaction, join(mode, intention(requestType)));
+        if (this.resourcesOfT.get(transaction).size() > escalation)
+            this.escalate(transaction);
+    }
+
+    /**
+     * Replace the resource locks of a transaction by a lock on the site, S if
+     * it only reads, X if it writes. Nothing is done while other transactions
+     * hold a site lock not compatible with it, or a range lock when it is X.
+     * Resources written under recovery keep their record, their recovery
+     * lock is released at commit.
+     */
+    private void escalate(String transaction) {
+        Set<String> resources = this.resourcesOfT.get(transaction);
+        LockType mode = this.modeOfT.get(transaction);
+        LockType target = mode == LockType.IS ? LockType.S : LockType.X;
+        if (!this.siteHolders(transaction, target).isEmpty())
+            return;
+        if (target == LockType.X)
+            for (String holder : rangesOfT.keySet())
+                if (!holder.equals(transaction))
+                    return;
+
+        Set<String> kept = new HashSet<String>();
+        for (String resource : resources) {
+            ResourceLock thisLock = locksOfR.get(resource);
+            if (thisLock == null || (thisLock.getType() != LockType.READ
+                    && thisLock.getType() != LockType.WRITE)) {
+                kept.add(resource);
+                continue;
+            }
+            thisLock.removeLock(resource, transaction);
+            if (thisLock.getType() == null)
+                locksOfR.remove(resource);
+        }
+        this.resourcesOfT.put(transaction, kept);
+        this.modeOfT.put(transaction, target);
     }
 
     @Override
     public void recovery(Set<String> notUnique) {
         this.locksOfR.clear();
         this.resourcesOfT.clear();
+        this.rangesOfT.clear();
+        this.modeOfT.clear();
 
         for (String resource : notUnique) {
             ResourceLock tempLock = new ResourceLock(resource);
@@ -146,6 +407,8 @@ class ImpLockManager implements LockManager {
     public void removeAllLocks() {
         this.locksOfR.clear();
         this.resourcesOfT.clear();
+        this.rangesOfT.clear();
+        this.modeOfT.clear();
     }
 
     @Override
@@ -184,15 +447,17 @@ class ImpLockManager implements LockManager {
     public boolean removeLockByTransaction(String transaction) {
 
         Set<String> thisResources = this.resourcesOfT.get(transaction);
+        boolean thereturn = this.rangesOfT.remove(transaction) != null;
+        thereturn = this.modeOfT.remove(transaction) != null || thereturn;
 
         // This transaction locks no resources
         if (thisResources == null || thisResources.isEmpty())
-            return false;
+            return thereturn;
 
-        boolean thereturn = false;
         for (String resource : thisResources) {
             thereturn = this.removeLock(resource, transaction) || thereturn;
         }
+        this.resourcesOfT.remove(transaction);
 
         return thereturn;
     }
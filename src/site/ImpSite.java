@@ -2,6 +2,7 @@ package site;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,17 +28,42 @@ public class ImpSite implements Site{
     
     private int siteNum;
     
+    /**
+     * writes the checkpoints of the site, null if there is none
+     */
+    private Checkpointer checkpointer;
+    
+    /**
+     * commits between two checkpoints
+     */
+    private int checkpointInterval;
+    
+    private int commits;
+    
     
     /**
      * Constructor of Site
      * @param siteNum For the test scenario, siteNum is from 1 to 10
-     * @param data data represented by String. No necessary to parse to int.
+     * @param data initial value of each resource on this site
      * @param unique a set of resource name which only stored on this site
      */
-    public ImpSite(int siteNum, Map<String, String> data, Set<String> unique){      
+    public ImpSite(int siteNum, Map<String, Long> data, Set<String> unique){      
+        this(siteNum, data, unique, new PersistentDataStore());
+    }
+    
+    
+    /**
+     * Constructor of Site with a chosen backend for the committed data, i.e.
+     * {@link PersistentDataStore}, {@link HeapDataStore} or {@link MappedDataStore}
+     * @param siteNum For the test scenario, siteNum is from 1 to 10
+     * @param data initial value of each resource on this site
+     * @param unique a set of resource name which only stored on this site
+     * @param store an empty store keeping the committed values
+     */
+    public ImpSite(int siteNum, Map<String, Long> data, Set<String> unique, DataStore store){      
         this.siteNum = siteNum;
         lockManager = new ImpLockManager();
-        dataManager = new ImpDataManager(data, unique);
+        dataManager = new ImpDataManager(data, unique, store);
         this.isRunning = true;
     }
    
@@ -56,8 +82,11 @@ public class ImpSite implements Site{
                     request.transaction, LockType.WRITE);
         case ROREAD:
             return new HashSet<String>();
+        case SCAN:
+            return lockManager.checkRangeConflict(request.resource,
+                    request.value, request.transaction);
         default:
-            throw new IllegalArgumentException("request type must be either read or write");
+            throw new IllegalArgumentException("request type must be either read, write or scan");
         }
     }
 
@@ -74,17 +103,32 @@ public class ImpSite implements Site{
         switch (requestType){
         case READ:
             lockManager.setLock(request.resource, request.transaction, LockType.READ);
-            result = "site [" + this.siteNum + "] == " + dataManager.read(request.transaction, request.resource, false);
+            result = String.valueOf(dataManager.read(request.transaction, request.resource, false));
             break;
         case WRITE:
             lockManager.setLock(request.resource, request.transaction, LockType.WRITE);
             if (request.value == null || request.value.isEmpty()){
                 throw new IllegalArgumentException("value to be written to database is null");
             }
-            dataManager.write(request.transaction, request.resource, request.value);
+            dataManager.write(request.transaction, request.resource, request.longValue());
+            break;
+        case SCAN:      //read a range under a range lock
+            lockManager.setRangeLock(request.resource, request.value, request.transaction);
+            StringBuffer values = new StringBuffer();
+            for (String resource : dataManager.resourcesBetween(request.resource, request.value)){
+                // copies not up to date are read on other sites
+                if (this.isRecovering(resource))
+                    continue;
+                if (values.length() > 0)
+                    values.append(", ");
+                values.append(resource);
+                values.append('=');
+                values.append(dataManager.read(request.transaction, resource, false));
+            }
+            result = values.toString();
             break;
         case ROREAD:    //read issued by a read only transaction
-            result = dataManager.read(request.transaction, request.resource, true);
+            result = String.valueOf(dataManager.readOnly(request.transaction, request.resource, request.timestamp));
             break;
         case DUMP:
             if (request.resource == null || request.resource.isEmpty()){
@@ -99,7 +143,12 @@ public class ImpSite implements Site{
                 throw new IllegalArgumentException("transaction is null");
             }
             lockManager.removeLockByTransaction(request.transaction);
-            dataManager.commit(request.transaction);
+            dataManager.commit(request.transaction, request.timestamp, request.watermark);
+            if (checkpointer != null) {
+                checkpointer.log(dataManager);
+                if (++commits % checkpointInterval == 0)
+                    checkpointer.checkpoint(dataManager);
+            }
             break;
         case ABORT:
             if (request.transaction == null || request.transaction.isEmpty()){
@@ -134,12 +183,85 @@ public class ImpSite implements Site{
     }
 
 
+    @Override
+    public boolean heartbeat() {
+        // always reachable in the same process
+        return true;
+    }
+
+
     @Override
     public int getSiteNum() {
         return siteNum;
     }
 
 
+    /**
+     * Commit many transactions in one pass, the same as executing the COMMIT
+     * requests one by one. The changes are logged once.
+     * @param requests COMMIT requests, in commit order
+     */
+    @Override
+    public void commitAll(List<Request> requests) {
+        if (!this.isRunning){
+            throw new RuntimeException("access a down site");
+        }
+        if (requests.isEmpty())
+            return;
+        String[] transactions = new String[requests.size()];
+        int[] timestamps = new int[requests.size()];
+        int watermark = Integer.MAX_VALUE;
+        for (int i = 0; i < transactions.length; i++) {
+            Request request = requests.get(i);
+            if (request.requestType != RequestType.COMMIT
+                    || request.transaction == null || request.transaction.isEmpty()){
+                throw new IllegalArgumentException("not a commit: " + request);
+            }
+            transactions[i] = request.transaction;
+            timestamps[i] = request.timestamp;
+            watermark = Math.min(watermark, request.watermark);
+        }
+        for (String transaction : transactions)
+            lockManager.removeLockByTransaction(transaction);
+        dataManager.commitAll(transactions, timestamps, watermark);
+        if (checkpointer != null) {
+            checkpointer.log(dataManager);
+            int before = this.commits / checkpointInterval;
+            this.commits += transactions.length;
+            if (this.commits / checkpointInterval > before)
+                checkpointer.checkpoint(dataManager);
+        }
+    }
+
+
+    /**
+     * Take a checkpoint every given number of commits, and log the changes
+     * in between, see {@link Checkpointer}
+     * @param checkpointer null for no checkpoint
+     * @param interval commits between two checkpoints
+     */
+    public void setCheckpointer(Checkpointer checkpointer, int interval) {
+        if (interval <= 0){
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        }
+        this.checkpointer = checkpointer;
+        this.checkpointInterval = interval;
+        this.commits = 0;
+        dataManager.setRedoLog(checkpointer != null);
+    }
+
+
+    /**
+     * Take a checkpoint now
+     */
+    public void checkpoint() {
+        if (checkpointer == null){
+            throw new IllegalStateException("no checkpointer for site " + siteNum);
+        }
+        checkpointer.checkpoint(dataManager);
+    }
+
+
     ImpLockManager getLockManager() {
         return lockManager;
     }
@@ -158,7 +280,8 @@ public class ImpSite implements Site{
 
     @Override
     public boolean isRecovering(String resource) {
-        return this.getLockManager().isRecoverying(resource);
+        return this.getLockManager().isRecoverying(resource)
+                || this.getLockManager().isMigrating(resource);
     }
 
 
@@ -168,9 +291,58 @@ public class ImpSite implements Site{
     }
 
 
+    @Override
+    public boolean canRead(String resource, int timestamp) {
+        return this.isRunning && !this.lockManager.isMigrating(resource)
+                && this.dataManager.canRead(resource, timestamp);
+    }
+
+
     @Override
     public void recover() {
+        this.dataManager.recover();
         this.lockManager.recovery(this.dataManager.getReplicatedResource());
         this.isRunning = true;
     }
+
+
+    @Override
+    public long exportResource(String resource) {
+        if (!this.isRunning){
+            throw new RuntimeException("access a down site");
+        }
+        if (!dataManager.containsResource(resource)){
+            throw new IllegalArgumentException("no resource " + resource + " on site " + siteNum);
+        }
+        return dataManager.committedValue(resource);
+    }
+
+
+    @Override
+    public void importResource(String resource, long value, boolean unique) {
+        if (!this.isRunning){
+            throw new RuntimeException("access a down site");
+        }
+        lockManager.lockForMigration(resource);
+        dataManager.addResource(resource, value, unique);
+        if (checkpointer != null){
+            checkpointer.log(dataManager);
+        }
+    }
+
+
+    @Override
+    public void finishImport(String resource) {
+        lockManager.releaseMigration(resource);
+    }
+
+
+    @Override
+    public void dropResource(String resource) {
+        lockManager.removeLockByResource(resource);
+        dataManager.removeResource(resource);
+        if (checkpointer != null){
+            checkpointer.log(dataManager);
+        }
+    }
 }
\ No newline at end of file
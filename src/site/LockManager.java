@@ -28,11 +28,40 @@ interface LockManager {
      */
     boolean isRecoverying(String resource);
 
+    /**
+     * Return true if the resource is being migrated to this site, and holds
+     * the handoff lock. Otherwise return false
+     * 
+     * @param resource
+     * @return
+     */
+    boolean isMigrating(String resource);
+
+    /**
+     * Put the handoff lock on a resource being migrated to this site. There
+     * should be no other lock on the resource.
+     * 
+     * @param resource
+     */
+    void lockForMigration(String resource);
+
+    /**
+     * Remove the handoff lock of the resource. Returns true if the lock is
+     * removed.
+     * 
+     * @param resource
+     * @return true if there was a handoff lock on the resource
+     */
+    boolean releaseMigration(String resource);
+
     /**
      * Assuming that the requering resource is not under recovery. Should have
      * check the recovery status before calling this method.
      * 
      * Return the conflict transactionIDs if there is transaction <br>
+     * A write also conflicts with the range locks covering the resource <br>
+     * and with the site locks of other transactions that do not allow its
+     * intention lock <br>
      * Return empty list if there is no conflict<br>
      * Return a set with only one element "Recovery" if there is a recovery lock
      * on the resource.
@@ -52,9 +81,38 @@ interface LockManager {
     Set<String> checkConflict(String resource, String transactionID,
             LockType requestType);
 
+    /**
+     * Return the transactions other than transactionID holding a write lock
+     * on a resource from low to high included, or an X lock on the site. <br>
+     * Return null if a resource of the range is being migrated to this site.
+     * 
+     * @param low
+     * @param high
+     * @param transactionID
+     * @return the conflict transactionIDs, empty Set means no conflict
+     */
+    Set<String> checkRangeConflict(String low, String high,
+            String transactionID);
+
+    /**
+     * Put a range lock from low to high included. It is a read lock on every
+     * resource of the range, present on the site or not. This should be
+     * called after checkRangeConflict is called. Assuming that there is no
+     * Conflict.
+     * 
+     * @param low
+     * @param high
+     * @param transactionID
+     */
+    void setRangeLock(String low, String high, String transactionID);
+
     /**
      * set the Lock based on the Request given This should be called after
-     * checkConfilct is called. Assuming that there is no Conflict.
+     * checkConfilct is called. Assuming that there is no Conflict. <br>
+     * The transaction also gets the intention lock on the site. A lock
+     * covered by the site lock of the transaction is not kept, and the locks
+     * of a transaction holding too many of them may be escalated to a site
+     * lock.
      * 
      * @param resource
      *            The resource to be checked
@@ -0,0 +1,121 @@
+package site;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Keeps the values in a memory mapped file, out of the heap. Each slot takes 8
+ * bytes at offset 8 * slot. The file is mapped in segments of
+ * {@link #SEGMENT_SLOTS} slots, since one mapping can not exceed 2GB, and new
+ * segments are mapped when the site gets more resources. <br>
+ * <br>
+ * A commit writes the value in place in the mapping. The operating system
+ * writes the pages back to the file, {@link #sync()} forces it. <br>
+ * <br>
+ * The file only has the values by slot. Which resource is in which slot is
+ * known by the {@link ImpDataManager} using the store, and it is built again
+ * from the initial data each time a site is created. So a store can not be
+ * reopened with its values, {@link mainserver.MainServer} deletes the file
+ * before creating a store on it, and a restarted site gets its values from
+ * its checkpoints.
+ * 
+ */
+public class MappedDataStore implements DataStore {
+
+    /**
+     * number of slots in one mapped segment, 8MB per segment
+     */
+    static final int SEGMENT_SLOTS = 1 << 20;
+
+    private static final int SLOT_BYTES = 8;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Create a store on the given file. The slots already in the file are
+     * mapped, but nothing tells which resource they hold, see above.
+     * 
+     * @param path
+     *            the file backing the store
+     * @throws IOException
+     *             if the file can not be opened or mapped
+     */
+    public MappedDataStore(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.segments = new MappedByteBuffer[0];
+        long stored = channel.size() / SLOT_BYTES;
+        this.ensureCapacity((int) Math.min(stored, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public long get(int slot) {
+        return segments[slot / SEGMENT_SLOTS].getLong((slot % SEGMENT_SLOTS)
+                * SLOT_BYTES);
+    }
+
+    @Override
+    public void put(int slot, long value) {
+        segments[slot / SEGMENT_SLOTS].putLong((slot % SEGMENT_SLOTS)
+                * SLOT_BYTES, value);
+    }
+
+    @Override
+    public void ensureCapacity(int slots) {
+        int needed = (slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS;
+        if (needed <= segments.length)
+            return;
+        int old = segments.length;
+        segments = Arrays.copyOf(segments, needed);
+        try {
+            for (int i = old; i < needed; i++)
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) i * SEGMENT_SLOTS * SLOT_BYTES,
+                        (long) SEGMENT_SLOTS * SLOT_BYTES);
+        } catch (IOException e) {
+            segments = Arrays.copyOf(segments, old);
+            throw new RuntimeException("can not map data store", e);
+        }
+    }
+
+    /**
+     * Copies the slots to the heap, cost is linear in the number of slots
+     */
+    @Override
+    public StoreView snapshot(int slots) {
+        long[] result = new long[slots];
+        // bulk copy, the views start at position 0 of each segment
+        for (int i = 0; i < slots; i += SEGMENT_SLOTS)
+            segments[i / SEGMENT_SLOTS].asLongBuffer().get(result, i,
+                    Math.min(SEGMENT_SLOTS, slots - i));
+        return new ArrayView(result);
+    }
+
+    /**
+     * Force the written values to the file
+     */
+    public void sync() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    @Override
+    public void close() {
+        this.sync();
+        segments = null;
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            System.err.println("error: site.MappedDataStore.close\n  " + e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package site;
+
+/**
+ * Keeps the values in a persistent trie, 32 slots per leaf and 32 children per
+ * inner node, indexed by the bits of the slot. <br>
+ * <br>
+ * Taking a snapshot is O(1): the view keeps the current root, and the store
+ * starts a new edit. A node is only written in place by the edit that created
+ * it. A write to a node of an older edit copies the path from the root to the
+ * leaf, so the committed state after each commit is a new root sharing the
+ * untouched nodes with the snapshots. While there is no snapshot, writes are
+ * done in place.
+ * 
+ */
+public class PersistentDataStore implements DataStore {
+
+    private static final int BITS = 5;
+
+    private static final int WIDTH = 1 << BITS;
+
+    private static final int MASK = WIDTH - 1;
+
+    /**
+     * A node of the trie. Leaves have values, inner nodes have children.
+     */
+    private static final class Node {
+        /**
+         * the edit that created this node, it can only be changed in place by
+         * that edit
+         */
+        final Object edit;
+
+        final Node[] children;
+
+        final long[] values;
+
+        Node(Object edit, boolean leaf) {
+            this.edit = edit;
+            this.children = leaf ? null : new Node[WIDTH];
+            this.values = leaf ? new long[WIDTH] : null;
+        }
+
+        Node(Object edit, Node other) {
+            this.edit = edit;
+            this.children = other.children == null ? null : other.children
+                    .clone();
+            this.values = other.values == null ? null : other.values.clone();
+        }
+    }
+
+    /**
+     * A snapshot, the root at the time it is taken
+     */
+    private static final class TrieView implements StoreView {
+        private final Node root;
+        private final int shift;
+        private final int size;
+
+        TrieView(Node root, int shift, int size) {
+            this.root = root;
+            this.shift = shift;
+            this.size = size;
+        }
+
+        @Override
+        public long get(int slot) {
+            return lookup(root, shift, slot);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private Node root;
+
+    /**
+     * bits of the slot used by the root, 0 if the root is a leaf
+     */
+    private int shift;
+
+    /**
+     * the current edit, replaced each time a snapshot is taken
+     */
+    private Object edit;
+
+    public PersistentDataStore() {
+        this.edit = new Object();
+        this.root = new Node(edit, true);
+        this.shift = 0;
+    }
+
+    private static long lookup(Node node, int shift, int slot) {
+        for (int level = shift; level > 0; level -= BITS) {
+            node = node.children[(slot >>> level) & MASK];
+            if (node == null)
+                return 0;
+        }
+        return node.values[slot & MASK];
+    }
+
+    /**
+     * The node itself if it belongs to the current edit, otherwise a copy
+     */
+    private Node editable(Node node) {
+        return node.edit == edit ? node : new Node(edit, node);
+    }
+
+    @Override
+    public long get(int slot) {
+        return lookup(root, shift, slot);
+    }
+
+    @Override
+    public void put(int slot, long value) {
+        root = editable(root);
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int i = (slot >>> level) & MASK;
+            Node child = node.children[i];
+            child = child == null ? new Node(edit, level == BITS)
+                    : editable(child);
+            node.children[i] = child;
+            node = child;
+        }
+        node.values[slot & MASK] = value;
+    }
+
+    @Override
+    public void ensureCapacity(int slots) {
+        // capacity of the trie is WIDTH << shift
+        while (slots > ((long) WIDTH << shift)) {
+            Node temp = new Node(edit, false);
+            temp.children[0] = root;
+            root = temp;
+            shift += BITS;
+        }
+    }
+
+    /**
+     * O(1), keeps the current root and starts a new edit
+     */
+    @Override
+    public StoreView snapshot(int slots) {
+        edit = new Object();
+        return new TrieView(root, shift, slots);
+    }
+
+    @Override
+    public void close() {
+        root = null;
+    }
+}
@@ -0,0 +1,143 @@
+package site;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import entity.ResourceOrder;
+
+/**
+ * Gives each resource on a site a slot number, so the values can be kept in
+ * primitive arrays indexed by slot. Slots are given in increasing order and
+ * are never reused, so a slot read from an old copy of the arrays still
+ * belongs to the same resource. The names are also kept in order, for dumps
+ * and range scans.
+ * 
+ */
+class ResourceIndex {
+
+    /**
+     * Map from resource name to its slot
+     */
+    private final Map<String, Integer> slots;
+
+    /**
+     * names of the living resources, in resource order
+     */
+    private final TreeSet<String> ordered;
+
+    /**
+     * Map from slot to resource name, null if the resource has been removed
+     */
+    private String[] names;
+
+    /**
+     * number of slots given
+     */
+    private int size;
+
+    ResourceIndex() {
+        this.slots = new HashMap<String, Integer>();
+        this.ordered = new TreeSet<String>(ResourceOrder.INSTANCE);
+        this.names = new String[16];
+        this.size = 0;
+    }
+
+    /**
+     * The slot of the resource
+     * 
+     * @param resource
+     * @return the slot, -1 if there is no such resource
+     */
+    int slotOf(String resource) {
+        Integer slot = slots.get(resource);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Give a new slot to a resource
+     * 
+     * @param resource
+     * @return the new slot
+     */
+    int add(String resource) {
+        if (slots.containsKey(resource))
+            throw new IllegalArgumentException("resource " + resource
+                    + " already exists");
+        if (size == names.length)
+            names = Arrays.copyOf(names, size * 2);
+        names[size] = resource;
+        slots.put(resource, size);
+        ordered.add(resource);
+        return size++;
+    }
+
+    /**
+     * Remove a resource, its slot will not be used again
+     * 
+     * @param resource
+     * @return the slot of the resource, -1 if there is no such resource
+     */
+    int remove(String resource) {
+        Integer slot = slots.remove(resource);
+        if (slot == null)
+            return -1;
+        names[slot] = null;
+        ordered.remove(resource);
+        return slot;
+    }
+
+    /**
+     * @param slot
+     * @return the resource of the slot, null if it has been removed
+     */
+    String nameOf(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * @return number of slots given, all slots are below it
+     */
+    int capacity() {
+        return size;
+    }
+
+    /**
+     * @return names of the resources, read only
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+
+    /**
+     * The slots of the living resources, sorted by the number in the name,
+     * i.e. x2 before x10
+     * 
+     * @return slots in resource order
+     */
+    int[] sortedSlots() {
+        int[] result = new int[ordered.size()];
+        int i = 0;
+        for (String name : ordered)
+            result[i++] = slots.get(name);
+        return result;
+    }
+
+    /**
+     * @param low
+     * @param high
+     * @return names of the resources from low to high included, in order,
+     *         read only
+     */
+    SortedSet<String> namesBetween(String low, String high) {
+        if (ResourceOrder.INSTANCE.compare(low, high) > 0)
+            return Collections.unmodifiableSortedSet(new TreeSet<String>(
+                    ResourceOrder.INSTANCE));
+        return Collections.unmodifiableSortedSet(ordered.subSet(low, true,
+                high, true));
+    }
+}
@@ -99,7 +99,8 @@ class ResourceLock {
          */
         if (this.type == null && this.transactions.size() == 0) {
             this.type = type;
-            if (this.type == LockType.RECOVERY)
+            if (this.type == LockType.RECOVERY
+                    || this.type == LockType.MIGRATION)
                 this.transactions.clear();
             else
                 this.transactions.add(transaction);
@@ -150,7 +151,7 @@ class ResourceLock {
         if (!this.isValid(resource))
             return false;
 
-        if (this.type == LockType.RECOVERY) {
+        if (this.type == LockType.RECOVERY || this.type == LockType.MIGRATION) {
             this.type = null;
             return true;
         }
@@ -184,7 +185,7 @@ class ResourceLock {
      * If the lock is read, the transactions set can not be empty <br>
      * If the lock is write, the transactions set must have one and only one
      * element <br>
-     * If the lock is recovery, the transactions set msut be empty
+     * If the lock is recovery or migration, the transactions set msut be empty
      * 
      * @param resource
      * @return
@@ -233,7 +234,7 @@ class ResourceLock {
             return false;
         }
 
-        if (this.type == LockType.RECOVERY) {
+        if (this.type == LockType.RECOVERY || this.type == LockType.MIGRATION) {
             if (this.transactions.isEmpty())
                 return true;
 
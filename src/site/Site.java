@@ -1,5 +1,6 @@
 package site;
 
+import java.util.List;
 import java.util.Set;
 
 import entity.Request;
@@ -16,12 +17,16 @@ public interface Site {
      * 
      * Return the conflict transactionIDs if there is transaction <br>
      * Return empty set if there is no conflict <br>
+     * For a scan, the conflicts are the write locks from request.resource to
+     * request.value, null if a copy is being migrated into the range.
      * 
      * @param request
      *            request from the transaction manager
      * @return the conflict transactionIDs *
+     * @throws SiteUnreachableException if the site can not be reached
      */
-    public Set<String> checkConflict(Request request);
+    public Set<String> checkConflict(Request request)
+            throws SiteUnreachableException;
 
     /**
      * This should be called strictly after calling the CheckConflict <br>
@@ -30,9 +35,24 @@ public interface Site {
      * @param request
      *            request from the transaction manger
      * @return the return string of the request. null if no respond is needed <br>
-     * return error messages if there is error.
+     * return error messages if there is error. <br>
+     * A scan locks the range and returns the up to date copies of the range on
+     * the site, as "x2=20, x4=40".
+     * @throws SiteUnreachableException if the site can not be reached, the
+     * request may have been executed
      */
-    public String exeRequest(Request request);
+    public String exeRequest(Request request) throws SiteUnreachableException;
+    
+    
+    /**
+     * Commit many transactions in one call, the same as executing their
+     * COMMIT requests one by one in the given order
+     * @param requests COMMIT requests, in commit order
+     * @throws SiteUnreachableException if the site can not be reached, some
+     * of the commits may have been applied unless it is not in doubt
+     */
+    public void commitAll(List<Request> requests)
+            throws SiteUnreachableException;
     
     
     /**
@@ -43,11 +63,19 @@ public interface Site {
     
     /**
      * Check site status
-     * @return return true if site is running
+     * @return return true if site is running, false if it can not be reached
      */
     public boolean isRunning();
     
     
+    /**
+     * Answer a heartbeat of the failure detector. A failed site still answers,
+     * only a site that can not be reached does not.
+     * @return true if the site can be reached
+     */
+    public boolean heartbeat();
+    
+    
     /**
      * check if this site contains requested resource
      * @param resource
@@ -64,7 +92,8 @@ public interface Site {
     
     
     /**
-     * Check if given resource is recovering 
+     * Check if given resource is recovering, or is being migrated to this site.
+     * The resource can not be accessed in both cases.
      * @return return true if it is recovering
      */
     public boolean isRecovering(String resource);
@@ -76,5 +105,57 @@ public interface Site {
      */
     public void createSnapshot(String transaction);
     
+    
+    /**
+     * Check if a read only transaction begun at the time stamp can read the
+     * resource on this site. The site must be running and its copy must have
+     * been up to date since the time stamp.
+     * @param resource
+     * @param timestamp begin time stamp of the read only transaction
+     * @return true if the site can serve the read
+     */
+    public boolean canRead(String resource, int timestamp);
+    
     public void recover();
+    
+    
+    /**
+     * Committed value of a resource, the copy to be streamed to the target of
+     * a migration
+     * @param resource
+     * @return the committed value
+     * @throws SiteUnreachableException if the site can not be reached
+     */
+    public long exportResource(String resource) throws SiteUnreachableException;
+    
+    
+    /**
+     * Install the copy of a resource migrated from another site. The copy is
+     * kept under the handoff lock until {@link #finishImport(String)}
+     * @param resource
+     * @param value committed value of the resource
+     * @param unique true if there is no other copy of the resource
+     * @throws SiteUnreachableException if the site can not be reached, the
+     * copy may have been installed
+     */
+    public void importResource(String resource, long value, boolean unique)
+            throws SiteUnreachableException;
+    
+    
+    /**
+     * Release the handoff lock of a migrated resource, it can be accessed
+     * afterwards
+     * @param resource
+     * @throws SiteUnreachableException if the site can not be reached
+     */
+    public void finishImport(String resource) throws SiteUnreachableException;
+    
+    
+    /**
+     * Drop the copy of a resource that has been migrated to another site, or
+     * whose import has failed. The handoff lock is released too.
+     * @param resource
+     * @throws SiteUnreachableException if the site can not be reached
+     */
+    public void dropResource(String resource) throws SiteUnreachableException;
 }
\ No newline at end of file
@@ -0,0 +1,282 @@
+package site;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import entity.RequestCodec;
+
+/**
+ * The committed values of a site at one commit, in resource order, written to
+ * a channel in chunks. <br>
+ * <br>
+ * It is taken by {@link ImpDataManager#openDump()} on a {@link StoreView}, so
+ * it does not change when the site commits afterwards and nothing is copied
+ * but the names in order. It can be written by another thread while the site
+ * goes on, once handed to it. <br>
+ * <br>
+ * A dump is written as a checkpoint:
+ * [commit][dropped count][dropped names][count] then [name][value] per
+ * resource, names as in {@link RequestCodec}, numbers as varints and values
+ * zigzag encoded. The dump of a whole site drops nothing, the dump of the
+ * resources changed since the last checkpoint also drops the resources moved
+ * away, see {@link ImpDataManager#openCheckpoint(boolean)}. A redo log is the
+ * records of {@link ImpDataManager#openRecord()} one after the other, each
+ * written as a checkpoint.
+ *
+ */
+public class SiteDump {
+
+    /**
+     * bytes written or read at once
+     */
+    static final int CHUNK = 64 << 10;
+
+    private final String[] names;
+
+    private final int[] slots;
+
+    private final String[] dropped;
+
+    private final StoreView view;
+
+    private final int commit;
+
+    /**
+     * @param names
+     *            the resources, in order
+     * @param slots
+     *            the slot of each of them in the view
+     * @param dropped
+     *            the resources removed from the site
+     * @param view
+     *            the committed values
+     * @param commit
+     *            time stamp of the last commit in the view
+     */
+    SiteDump(String[] names, int[] slots, String[] dropped, StoreView view,
+            int commit) {
+        this.names = names;
+        this.slots = slots;
+        this.dropped = dropped;
+        this.view = view;
+        this.commit = commit;
+    }
+
+    /**
+     * @return number of resources in the dump
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return true if the dump neither writes nor drops a resource
+     */
+    public boolean isEmpty() {
+        return names.length == 0 && dropped.length == 0;
+    }
+
+    /**
+     * @return time stamp of the last commit in the dump, 0 for the initial
+     *         data
+     */
+    public int getCommit() {
+        return commit;
+    }
+
+    /**
+     * Write the dump as a checkpoint, see {@link #applyCheckpoint}
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void writeCheckpoint(WritableByteChannel channel)
+            throws IOException {
+        this.writeCheckpoint(channel, ByteBuffer.allocate(CHUNK));
+    }
+
+    /**
+     * Write the dump as a checkpoint through the given buffer, emptied first
+     *
+     * @param channel
+     * @param buffer
+     * @throws IOException
+     */
+    public void writeCheckpoint(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        writeNumber(channel, buffer, commit);
+        writeNumber(channel, buffer, dropped.length);
+        for (String name : dropped)
+            writeRecord(channel, buffer, name, null);
+        writeNumber(channel, buffer, names.length);
+        for (int i = 0; i < names.length; i++)
+            writeRecord(channel, buffer, names[i], view.get(slots[i]));
+        flush(channel, buffer);
+    }
+
+    /**
+     * Put a varint in the buffer, flushing it first if it may not fit
+     */
+    private static void writeNumber(WritableByteChannel channel,
+            ByteBuffer buffer, long number) throws IOException {
+        // a varint of a long takes at most 10 bytes
+        if (buffer.remaining() < 10)
+            flush(channel, buffer);
+        RequestCodec.writeVarLong(number, buffer);
+    }
+
+    /**
+     * Put a name and its value if not null in the buffer, flushing it first
+     * if they do not fit
+     */
+    private static void writeRecord(WritableByteChannel channel,
+            ByteBuffer buffer, String name, Long value) throws IOException {
+        for (boolean flushed = false;; flushed = true) {
+            int start = buffer.position();
+            try {
+                RequestCodec.writeName(name, buffer);
+                if (value != null)
+                    RequestCodec.writeVarLong(RequestCodec.zigzag(value),
+                            buffer);
+                return;
+            } catch (BufferOverflowException e) {
+                buffer.position(start);
+                if (flushed)
+                    throw new IllegalArgumentException("resource [" + name
+                            + "] does not fit in a chunk");
+                flush(channel, buffer);
+            }
+        }
+    }
+
+    /**
+     * Write what is in the buffer and empty it
+     */
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Apply a checkpoint to the values read from the checkpoints before it:
+     * remove the resources it drops, then put the values it has
+     *
+     * @param channel
+     * @param values
+     *            the values, changed in place
+     * @return time stamp of the last commit in the checkpoint
+     * @throws IOException
+     *             if the channel ends inside the checkpoint
+     */
+    public static int applyCheckpoint(ReadableByteChannel channel,
+            Map<String, Long> values) throws IOException {
+        return apply(new Input(channel), values);
+    }
+
+    /**
+     * Apply the records of a redo log one after the other. A record cut by
+     * the end of the log was being written when the site stopped, its
+     * changes were never acknowledged and it is ignored.
+     *
+     * @param channel
+     * @param values
+     *            the values, changed in place
+     * @throws IOException
+     */
+    public static void applyLog(ReadableByteChannel channel,
+            Map<String, Long> values) throws IOException {
+        Input in = new Input(channel);
+        try {
+            while (!in.atEnd())
+                apply(in, values);
+        } catch (EOFException e) {
+            // the last record is cut
+        }
+    }
+
+    private static int apply(Input in, Map<String, Long> values)
+            throws IOException {
+        int commit = (int) in.number();
+        for (long i = in.number(); i > 0; i--)
+            values.remove(in.name());
+        for (long i = in.number(); i > 0; i--) {
+            String name = in.name();
+            values.put(name, RequestCodec.unzigzag(in.number()));
+        }
+        return commit;
+    }
+
+    /**
+     * Reads the numbers and names of a checkpoint, a chunk at a time
+     */
+    private static final class Input {
+        private final ReadableByteChannel channel;
+
+        // not backed by an array, so a name cut by the end of the chunk
+        // underflows as the numbers do
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.buffer.flip();
+        }
+
+        long number() throws IOException {
+            while (true) {
+                buffer.mark();
+                try {
+                    return RequestCodec.readVarLong(buffer);
+                } catch (BufferUnderflowException e) {
+                    this.more();
+                }
+            }
+        }
+
+        String name() throws IOException {
+            while (true) {
+                buffer.mark();
+                try {
+                    return RequestCodec.readName(buffer);
+                } catch (BufferUnderflowException e) {
+                    this.more();
+                }
+            }
+        }
+
+        /**
+         * @return true if the channel ends before the next number or name
+         */
+        boolean atEnd() throws IOException {
+            if (buffer.hasRemaining())
+                return false;
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read < 0;
+        }
+
+        /**
+         * Keep what is left from the mark and read the next chunk after it
+         */
+        private void more() throws IOException {
+            buffer.reset();
+            buffer.compact();
+            if (!buffer.hasRemaining())
+                throw new IOException("record larger than a chunk");
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0)
+                throw new EOFException("checkpoint is cut");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package site;
+
+/**
+ * A {@link Site} could not be reached. The site must be taken as failed: the
+ * transactions that visited it have lost their locks and uncommitted data
+ * there. <br>
+ * The call may or may not have been executed, see {@link #isInDoubt()}.
+ *
+ */
+public class SiteUnreachableException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * false if the call never reached the site
+     */
+    private final boolean inDoubt;
+
+    public SiteUnreachableException(String message) {
+        this(message, true);
+    }
+
+    public SiteUnreachableException(String message, Throwable cause) {
+        super(message, cause);
+        this.inDoubt = true;
+    }
+
+    /**
+     * @param message
+     * @param inDoubt
+     *            false if the call is known not to have reached the site
+     */
+    public SiteUnreachableException(String message, boolean inDoubt) {
+        super(message);
+        this.inDoubt = inDoubt;
+    }
+
+    /**
+     * @return true if the call may have been executed on the site, i.e. it
+     *         was sent and no reply came back
+     */
+    public boolean isInDoubt() {
+        return inDoubt;
+    }
+}
@@ -0,0 +1,24 @@
+package site;
+
+/**
+ * A read only view of the committed values of a site at the time it is taken.
+ * It does not change when the store is written afterwards.
+ * 
+ * @see DataStore#snapshot(int)
+ */
+public interface StoreView {
+
+    /**
+     * Value of a slot at the time of the view
+     * 
+     * @param slot
+     *            0 <= slot < size()
+     * @return the value
+     */
+    long get(int slot);
+
+    /**
+     * @return number of slots in the view
+     */
+    int size();
+}
@@ -0,0 +1,114 @@
+package site;
+
+import java.util.Arrays;
+
+/**
+ * The uncommitted writes of one transaction on a site, as parallel arrays of
+ * slots and values in the order they were first written. A slot written
+ * again keeps its place and takes the new value. <br>
+ * <br>
+ * A few writes are found by looking at all of them. Past {@link #LINEAR}
+ * writes, an open addressing table from slot to position is kept.
+ *
+ */
+class WriteBuffer {
+
+    /**
+     * writes looked up without the table
+     */
+    static final int LINEAR = 8;
+
+    private int[] slots;
+
+    private long[] values;
+
+    private int size;
+
+    /**
+     * position + 1 of the write of each slot, by hash of the slot, 0 for an
+     * empty entry. null while there are at most LINEAR writes
+     */
+    private int[] table;
+
+    WriteBuffer() {
+        this.slots = new int[4];
+        this.values = new long[4];
+        this.size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int slotAt(int position) {
+        return slots[position];
+    }
+
+    long valueAt(int position) {
+        return values[position];
+    }
+
+    /**
+     * @param slot
+     * @return position of the write of the slot, -1 if it is not written
+     */
+    int indexOf(int slot) {
+        if (table == null) {
+            for (int i = 0; i < size; i++)
+                if (slots[i] == slot)
+                    return i;
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int i = hash(slot) & mask; table[i] != 0; i = (i + 1) & mask)
+            if (slots[table[i] - 1] == slot)
+                return table[i] - 1;
+        return -1;
+    }
+
+    /**
+     * Write a value to a slot
+     *
+     * @param slot
+     * @param value
+     */
+    void put(int slot, long value) {
+        int position = this.indexOf(slot);
+        if (position >= 0) {
+            values[position] = value;
+            return;
+        }
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        slots[size] = slot;
+        values[size] = value;
+        size++;
+        if (table != null && size * 2 <= table.length)
+            this.index(size - 1);
+        else if (size > LINEAR)
+            this.rebuild();
+    }
+
+    /**
+     * A table of at least twice the writes, with all of them
+     */
+    private void rebuild() {
+        table = new int[Integer.highestOneBit(size * 4 - 1) << 1];
+        for (int i = 0; i < size; i++)
+            this.index(i);
+    }
+
+    private void index(int position) {
+        int mask = table.length - 1;
+        int i = hash(slots[position]) & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = position + 1;
+    }
+
+    private static int hash(int slot) {
+        return slot * 0x9E3779B9;
+    }
+}
@@ -1,7 +1,22 @@
 package site.entity;
 
+/**
+ * READ and WRITE lock a resource, RECOVERY and MIGRATION keep a copy from
+ * being accessed. <br>
+ * <br>
+ * The others are the modes of the lock a transaction has on a whole site:
+ * IS and IX say that it has read or write locks on some of its resources, S
+ * and X that it reads or writes all of them, SIX that it reads all of them and
+ * writes some.
+ */
 public enum LockType {
     READ,
     WRITE,
-    RECOVERY
+    RECOVERY,
+    MIGRATION,
+    IS,
+    IX,
+    S,
+    SIX,
+    X
 }
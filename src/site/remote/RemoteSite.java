@@ -0,0 +1,367 @@
+package site.remote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import site.Site;
+import site.SiteUnreachableException;
+import site.remote.SiteProtocol.Method;
+import site.remote.SiteProtocol.RemoteError;
+
+import entity.Request;
+import entity.RequestCodec;
+
+/**
+ * A {@link Site} living in another process, reached through a
+ * {@link SiteServer}. <br>
+ * <br>
+ * One connection is kept and reused for all calls. Calls without result
+ * (fail, createSnapshot and recover) are pipelined: they are written without
+ * waiting for their reply, the server executes the calls of a connection in
+ * order, so the next call with a result sees their effect. The steps of a
+ * migration wait for their reply, the transaction manager must know that a
+ * copy is installed before it drops the old one. <br>
+ * <br>
+ * A site that can not be reached is a failed site: when the connection breaks
+ * or a call gets no reply within the timeout, the connection is dropped, the
+ * call throws {@link SiteUnreachableException} and {@link #isRunning()} is
+ * false. The connection is opened again at most once per timeout, and the
+ * remote site is then failed too, as the transaction manager has lost its
+ * locks and uncommitted data. It is back only after a recover.
+ *
+ */
+public class RemoteSite implements Site {
+
+    private final int siteNum;
+
+    private final SocketAddress address;
+
+    /**
+     * milliseconds to wait for a reply, and between two connection attempts
+     */
+    private final long timeout;
+
+    /**
+     * the connection, null while the site can not be reached
+     */
+    private SocketChannel channel = null;
+
+    /**
+     * true once a connection has been lost, the remote site must be failed
+     * when connecting again
+     */
+    private boolean lost = false;
+
+    private long lastAttempt = 0;
+
+    private long nextId = 1;
+
+    /**
+     * calls sent and not answered yet, by id
+     */
+    private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+
+    public RemoteSite(int siteNum, SocketAddress address, long timeout) {
+        this.siteNum = siteNum;
+        this.address = address;
+        this.timeout = timeout;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> checkConflict(Request request)
+            throws SiteUnreachableException {
+        // null for a scan into a migrated copy
+        return (Set<String>) this.call(Method.CHECK_CONFLICT, request);
+    }
+
+    @Override
+    public String exeRequest(Request request) throws SiteUnreachableException {
+        return (String) this.call(Method.EXE_REQUEST, request);
+    }
+
+    @Override
+    public void commitAll(List<Request> requests)
+            throws SiteUnreachableException {
+        this.call(Method.COMMIT_ALL, requests);
+    }
+
+    @Override
+    public void fail() {
+        this.post(Method.FAIL);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.ask(Method.IS_RUNNING);
+    }
+
+    @Override
+    public boolean heartbeat() {
+        try {
+            this.call(Method.HEARTBEAT);
+            return true;
+        } catch (SiteUnreachableException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean containsResource(String resource) {
+        return this.ask(Method.CONTAINS_RESOURCE, resource);
+    }
+
+    @Override
+    public int getSiteNum() {
+        return this.siteNum;
+    }
+
+    @Override
+    public boolean isRecovering(String resource) {
+        // an unreachable site is found by the next call of the request
+        return this.ask(Method.IS_RECOVERING, resource);
+    }
+
+    @Override
+    public void createSnapshot(String transaction) {
+        this.post(Method.CREATE_SNAPSHOT, transaction);
+    }
+
+    @Override
+    public boolean canRead(String resource, int timestamp) {
+        return this.ask(Method.CAN_READ, resource, timestamp);
+    }
+
+    @Override
+    public void recover() {
+        // try to connect at once
+        synchronized (this) {
+            lastAttempt = 0;
+        }
+        this.post(Method.RECOVER);
+    }
+
+    @Override
+    public long exportResource(String resource)
+            throws SiteUnreachableException {
+        return (Long) this.call(Method.EXPORT_RESOURCE, resource);
+    }
+
+    @Override
+    public void importResource(String resource, long value, boolean unique)
+            throws SiteUnreachableException {
+        this.call(Method.IMPORT_RESOURCE, resource, value, unique);
+    }
+
+    @Override
+    public void finishImport(String resource) throws SiteUnreachableException {
+        this.call(Method.FINISH_IMPORT, resource);
+    }
+
+    @Override
+    public void dropResource(String resource) throws SiteUnreachableException {
+        this.call(Method.DROP_RESOURCE, resource);
+    }
+
+    /**
+     * Close the connection
+     */
+    public synchronized void close() {
+        if (channel != null)
+            this.drop(channel);
+        this.lost = false;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(siteNum);
+    }
+
+    /**
+     * Call a method returning a boolean, false if the site can not be reached
+     */
+    private boolean ask(Method method, Object... arguments) {
+        try {
+            return (Boolean) this.call(method, arguments);
+        } catch (SiteUnreachableException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Call a method and wait for its result
+     *
+     * @return the result, null for a method without result
+     * @throws SiteUnreachableException
+     *             if the connection is lost or there is no reply within the
+     *             timeout
+     */
+    private Object call(Method method, Object... arguments)
+            throws SiteUnreachableException {
+        CompletableFuture<Object> reply = this.send(method, arguments);
+        if (reply == null)
+            throw new SiteUnreachableException("site [" + siteNum
+                    + "] can not be reached", false);
+        Object result;
+        try {
+            result = reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("site [" + siteNum + "] does not answer in "
+                    + timeout + "ms");
+            this.dropAll();
+            throw new SiteUnreachableException("site [" + siteNum
+                    + "] does not answer in " + timeout + "ms");
+        } catch (ExecutionException e) {
+            throw new SiteUnreachableException("site [" + siteNum
+                    + "] can not be reached", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SiteUnreachableException("interrupted calling site ["
+                    + siteNum + "]", e);
+        }
+        if (result instanceof RemoteError)
+            throw new RuntimeException("site [" + siteNum + "]: "
+                    + ((RemoteError) result).message);
+        return result;
+    }
+
+    /**
+     * Call a method without result, without waiting. An error of the remote
+     * site is reported when the reply arrives
+     */
+    private void post(Method method, Object... arguments) {
+        CompletableFuture<Object> reply = this.send(method, arguments);
+        if (reply == null)
+            return;
+        reply.thenAccept(new Consumer<Object>() {
+            @Override
+            public void accept(Object result) {
+                if (result instanceof RemoteError)
+                    System.err.println("site [" + siteNum + "]: "
+                            + ((RemoteError) result).message);
+            }
+        });
+    }
+
+    /**
+     * Write a call without waiting for its reply
+     *
+     * @return the future reply, null if the site can not be reached
+     */
+    private synchronized CompletableFuture<Object> send(Method method,
+            Object... arguments) {
+        if (channel == null && !this.connect())
+            return null;
+        long id = nextId++;
+        CompletableFuture<Object> reply = new CompletableFuture<Object>();
+        pending.put(id, reply);
+        try {
+            SiteProtocol.writeFrame(channel,
+                    SiteProtocol.call(id, method, arguments));
+        } catch (IOException e) {
+            System.err.println("site [" + siteNum + "] connection lost: " + e);
+            this.drop(channel);
+            return null;
+        }
+        return reply;
+    }
+
+    /**
+     * Open the connection, at most once per timeout
+     *
+     * @return true if connected
+     */
+    private boolean connect() {
+        long now = System.currentTimeMillis();
+        if (now - lastAttempt < timeout)
+            return false;
+        lastAttempt = now;
+        final SocketChannel opened;
+        try {
+            if (address instanceof InetSocketAddress) {
+                opened = SocketChannel.open();
+                opened.socket().connect(address, (int) timeout);
+            } else {
+                opened = SocketChannel.open(address);
+            }
+            SiteProtocol.noDelay(opened);
+        } catch (IOException e) {
+            return false;
+        }
+        this.channel = opened;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(opened);
+            }
+        }, "remote-site-" + siteNum);
+        reader.setDaemon(true);
+        reader.start();
+
+        // the site has been unreachable, what the transaction manager
+        // knew of it is gone
+        if (lost) {
+            lost = false;
+            this.send(Method.FAIL);
+        }
+        return true;
+    }
+
+    /**
+     * Read the replies of a connection until it is closed
+     */
+    private void receive(SocketChannel opened) {
+        try {
+            ByteBuffer body;
+            while ((body = SiteProtocol.readFrame(opened)) != null) {
+                long id = RequestCodec.readVarLong(body);
+                CompletableFuture<Object> reply = pending.remove(id);
+                if (reply != null)
+                    reply.complete(SiteProtocol.readValue(body));
+            }
+        } catch (IOException e) {
+            // dropped below
+        }
+        synchronized (this) {
+            this.drop(opened);
+        }
+    }
+
+    private synchronized void dropAll() {
+        if (channel != null)
+            this.drop(channel);
+    }
+
+    /**
+     * Close the connection if it is the current one, and fail the calls
+     * waiting for a reply
+     */
+    private void drop(SocketChannel closing) {
+        try {
+            closing.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        if (closing != channel)
+            return;
+        channel = null;
+        lost = true;
+        IOException closed = new IOException("connection to site [" + siteNum
+                + "] closed");
+        for (CompletableFuture<Object> reply : pending.values())
+            reply.completeExceptionally(closed);
+        pending.clear();
+    }
+}
@@ -0,0 +1,260 @@
+package site.remote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import entity.Request;
+import entity.RequestCodec;
+
+/**
+ * Frames exchanged between a {@link RemoteSite} and a {@link SiteServer}. <br>
+ * <br>
+ * A frame is the length of its body as an int, then the body. The body of a
+ * call is [id][method][count][arguments], the body of a reply is [id][value].
+ * Ids are varints, given by the caller, and a reply carries the id of its
+ * call, so calls can be pipelined on one connection. Arguments and results
+ * are tagged values, requests are written by {@link RequestCodec}, a list is
+ * its size then its tagged values.
+ *
+ */
+public class SiteProtocol {
+
+    /**
+     * The methods of {@link site.Site}
+     */
+    enum Method {
+        CHECK_CONFLICT, EXE_REQUEST, FAIL, IS_RUNNING, CONTAINS_RESOURCE,
+        GET_SITE_NUM, IS_RECOVERING, CREATE_SNAPSHOT, CAN_READ, RECOVER,
+        EXPORT_RESOURCE, IMPORT_RESOURCE, FINISH_IMPORT, DROP_RESOURCE,
+        HEARTBEAT, COMMIT_ALL
+    }
+
+    static final Method[] METHODS = Method.values();
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte NUMBER = 2;
+    private static final byte STRING = 3;
+    private static final byte SET = 4;
+    private static final byte REQUEST = 5;
+    private static final byte ERROR = 6;
+    private static final byte LIST = 7;
+
+    private static final int MAX_FRAME = 64 << 20;
+
+    /**
+     * An error raised by the site on the other side, sent back as the result
+     * of a call
+     */
+    static class RemoteError {
+        final String message;
+
+        RemoteError(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Parse the address of a site server: host:port, or a port on the
+     * loopback, or else the path of a unix domain socket
+     *
+     * @param text
+     * @return the address
+     */
+    public static SocketAddress address(String text) {
+        if (text.matches("\\d+"))
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(text));
+        int colon = text.lastIndexOf(':');
+        if (colon > 0 && text.indexOf('/') < 0
+                && text.substring(colon + 1).matches("\\d+"))
+            return new InetSocketAddress(text.substring(0, colon),
+                    Integer.parseInt(text.substring(colon + 1)));
+        return UnixDomainSocketAddress.of(text);
+    }
+
+    /**
+     * Send small frames at once, on TCP. Unix domain sockets have no such
+     * option
+     */
+    static void noDelay(SocketChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY))
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Encode a call in a frame ready to be written
+     */
+    static ByteBuffer call(long id, Method method, Object... arguments) {
+        for (int size = 256;; size *= 2) {
+            ByteBuffer frame = ByteBuffer.allocate(size);
+            try {
+                frame.position(4);
+                RequestCodec.writeVarLong(id, frame);
+                frame.put((byte) method.ordinal());
+                frame.put((byte) arguments.length);
+                for (Object argument : arguments)
+                    writeValue(argument, frame);
+                return seal(frame);
+            } catch (BufferOverflowException e) {
+                // try a larger frame
+            }
+        }
+    }
+
+    /**
+     * Encode a reply in a frame ready to be written
+     */
+    static ByteBuffer reply(long id, Object value) {
+        for (int size = 256;; size *= 2) {
+            ByteBuffer frame = ByteBuffer.allocate(size);
+            try {
+                frame.position(4);
+                RequestCodec.writeVarLong(id, frame);
+                writeValue(value, frame);
+                return seal(frame);
+            } catch (BufferOverflowException e) {
+                // try a larger frame
+            }
+        }
+    }
+
+    private static ByteBuffer seal(ByteBuffer frame) {
+        frame.flip();
+        frame.putInt(0, frame.limit() - 4);
+        return frame;
+    }
+
+    static Object[] readArguments(ByteBuffer body) {
+        Object[] arguments = new Object[body.get()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = readValue(body);
+        return arguments;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void writeValue(Object value, ByteBuffer out) {
+        if (value == null) {
+            out.put(NULL);
+        } else if (value instanceof Boolean) {
+            out.put(BOOLEAN);
+            out.put((byte) (((Boolean) value) ? 1 : 0));
+        } else if (value instanceof Number) {
+            out.put(NUMBER);
+            RequestCodec.writeVarLong(
+                    RequestCodec.zigzag(((Number) value).longValue()), out);
+        } else if (value instanceof String) {
+            out.put(STRING);
+            RequestCodec.writeName((String) value, out);
+        } else if (value instanceof Set) {
+            Set<String> names = (Set<String>) value;
+            out.put(SET);
+            RequestCodec.writeVarLong(names.size(), out);
+            for (String name : names)
+                RequestCodec.writeName(name, out);
+        } else if (value instanceof List) {
+            List<Object> values = (List<Object>) value;
+            out.put(LIST);
+            RequestCodec.writeVarLong(values.size(), out);
+            for (Object element : values)
+                writeValue(element, out);
+        } else if (value instanceof Request) {
+            out.put(REQUEST);
+            RequestCodec.encode((Request) value, out);
+        } else if (value instanceof RemoteError) {
+            out.put(ERROR);
+            RequestCodec.writeString(((RemoteError) value).message, out);
+        } else {
+            throw new IllegalArgumentException("can not send "
+                    + value.getClass());
+        }
+    }
+
+    /**
+     * Read a tagged value. Numbers are read as long
+     */
+    static Object readValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case BOOLEAN:
+            return in.get() != 0;
+        case NUMBER:
+            return RequestCodec.unzigzag(RequestCodec.readVarLong(in));
+        case STRING:
+            return RequestCodec.readName(in);
+        case SET:
+            int size = (int) RequestCodec.readVarLong(in);
+            Set<String> names = new LinkedHashSet<String>();
+            for (int i = 0; i < size; i++)
+                names.add(RequestCodec.readName(in));
+            return names;
+        case LIST:
+            int length = (int) RequestCodec.readVarLong(in);
+            List<Object> values = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++)
+                values.add(readValue(in));
+            return values;
+        case REQUEST:
+            return RequestCodec.decode(in);
+        case ERROR:
+            return new RemoteError(RequestCodec.readString(in));
+        default:
+            throw new IllegalArgumentException("unknown tag " + tag);
+        }
+    }
+
+    /**
+     * Write the whole frame, blocking
+     */
+    static void writeFrame(WritableByteChannel channel, ByteBuffer frame)
+            throws IOException {
+        while (frame.hasRemaining())
+            channel.write(frame);
+    }
+
+    /**
+     * Read one frame, blocking
+     *
+     * @return the body of the frame, null at the end of the stream
+     */
+    static ByteBuffer readFrame(ReadableByteChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        if (!readFully(channel, length, true))
+            return null;
+        int size = length.getInt(0);
+        if (size < 0 || size > MAX_FRAME)
+            throw new IOException("bad frame length " + size);
+        ByteBuffer body = ByteBuffer.allocate(size);
+        readFully(channel, body, false);
+        body.flip();
+        return body;
+    }
+
+    private static boolean readFully(ReadableByteChannel channel,
+            ByteBuffer buffer, boolean endAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (endAllowed && buffer.position() == 0)
+                    return false;
+                throw new EOFException("connection closed inside a frame");
+            }
+        }
+        return true;
+    }
+}
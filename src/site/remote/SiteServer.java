@@ -0,0 +1,182 @@
+package site.remote;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import site.Site;
+import site.SiteUnreachableException;
+import site.remote.SiteProtocol.Method;
+import site.remote.SiteProtocol.RemoteError;
+
+import entity.Request;
+import entity.RequestCodec;
+
+/**
+ * Serves a {@link Site} to {@link RemoteSite}s, over TCP or a unix domain
+ * socket. <br>
+ * <br>
+ * Each connection has its own thread, which executes the calls in the order
+ * they arrive and answers each of them, so a client can pipeline its calls.
+ * Calls of different connections are executed one at a time on the site.
+ *
+ */
+public class SiteServer implements Runnable {
+
+    private final Site site;
+
+    private final ServerSocketChannel server;
+
+    private volatile boolean stopped = false;
+
+    public SiteServer(Site site, SocketAddress address) throws IOException {
+        this.site = site;
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            this.server = ServerSocketChannel.open();
+        }
+        this.server.bind(address);
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return this.server.getLocalAddress();
+    }
+
+    public void stop() {
+        this.stopped = true;
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            final SocketChannel channel;
+            try {
+                channel = this.server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("site [" + site.getSiteNum()
+                        + "] can not accept: " + e);
+                continue;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(channel);
+                }
+            }, "site-" + site.getSiteNum() + "-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answer the calls of one connection until it is closed
+     */
+    private void serve(SocketChannel channel) {
+        try {
+            SiteProtocol.noDelay(channel);
+            ByteBuffer body;
+            while ((body = SiteProtocol.readFrame(channel)) != null) {
+                long id = RequestCodec.readVarLong(body);
+                Method method = SiteProtocol.METHODS[body.get()];
+                Object result;
+                try {
+                    Object[] arguments = SiteProtocol.readArguments(body);
+                    synchronized (site) {
+                        result = this.invoke(method, arguments);
+                    }
+                } catch (RuntimeException e) {
+                    result = new RemoteError(String.valueOf(e));
+                } catch (SiteUnreachableException e) {
+                    result = new RemoteError(String.valueOf(e));
+                }
+                SiteProtocol.writeFrame(channel, SiteProtocol.reply(id, result));
+            }
+        } catch (IOException e) {
+            if (!stopped)
+                System.err.println("site [" + site.getSiteNum()
+                        + "] connection lost: " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Call the method of the site
+     *
+     * @return the result, null for void methods
+     * @throws SiteUnreachableException
+     *             if the site served is itself remote and can not be reached
+     */
+    private Object invoke(Method method, Object[] arguments)
+            throws SiteUnreachableException {
+        switch (method) {
+        case CHECK_CONFLICT:
+            return site.checkConflict((Request) arguments[0]);
+        case EXE_REQUEST:
+            return site.exeRequest((Request) arguments[0]);
+        case FAIL:
+            site.fail();
+            return null;
+        case IS_RUNNING:
+            return site.isRunning();
+        case CONTAINS_RESOURCE:
+            return site.containsResource((String) arguments[0]);
+        case GET_SITE_NUM:
+            return site.getSiteNum();
+        case IS_RECOVERING:
+            return site.isRecovering((String) arguments[0]);
+        case CREATE_SNAPSHOT:
+            site.createSnapshot((String) arguments[0]);
+            return null;
+        case CAN_READ:
+            return site.canRead((String) arguments[0],
+                    ((Long) arguments[1]).intValue());
+        case RECOVER:
+            site.recover();
+            return null;
+        case EXPORT_RESOURCE:
+            return site.exportResource((String) arguments[0]);
+        case IMPORT_RESOURCE:
+            site.importResource((String) arguments[0], (Long) arguments[1],
+                    (Boolean) arguments[2]);
+            return null;
+        case FINISH_IMPORT:
+            site.finishImport((String) arguments[0]);
+            return null;
+        case DROP_RESOURCE:
+            site.dropResource((String) arguments[0]);
+            return null;
+        case HEARTBEAT:
+            return site.heartbeat();
+        case COMMIT_ALL:
+            List<Request> requests = new ArrayList<Request>();
+            for (Object request : (List<?>) arguments[0])
+                requests.add((Request) request);
+            site.commitAll(requests);
+            return null;
+        default:
+            throw new IllegalArgumentException("unknown method " + method);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package trancmng;
+
+/**
+ * Admission control whose limit of running read write transactions is
+ * adjusted to the load, instead of fixed. <br>
+ * <br>
+ * The outcomes of the transactions and the lock wait times are collected over
+ * periods of at least PERIOD milliseconds and MIN_SAMPLE finished
+ * transactions. At the end of a period:
+ * <ul>
+ * <li>if the abort ratio is over the target, or the mean lock wait over the
+ * target, the limit is multiplied by DECREASE,</li>
+ * <li>else if the limit was reached during the period and the commit
+ * throughput has not dropped, the limit grows by one,</li>
+ * <li>else if the limit was reached and the throughput dropped, the limit
+ * shrinks by one.</li>
+ * </ul>
+ * The limit only grows while it is reached, so it follows the concurrency
+ * that pays off and stays between the given bounds. The thresholds of
+ * {@link AdmissionControl} on the waiting list and the abort ratio are not
+ * used, the limit replaces them.
+ * 
+ */
+public class AdaptiveAdmissionControl extends AdmissionControl {
+
+    static final long PERIOD = 100;
+
+    static final int MIN_SAMPLE = 16;
+
+    static final double DECREASE = 0.75;
+
+    /**
+     * relative drop of throughput still taken as no drop
+     */
+    static final double TOLERANCE = 0.05;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double targetAbortRatio;
+
+    private final long targetWaitNanos;
+
+    private double limit;
+
+    private long periodStart = System.nanoTime();
+
+    private int commits = 0;
+
+    private int aborts = 0;
+
+    private int waits = 0;
+
+    private long waitNanos = 0;
+
+    /**
+     * true if a transaction was held by the limit in this period
+     */
+    private boolean limited = false;
+
+    private double lastThroughput = 0;
+
+    /**
+     * @param minLimit
+     *            the limit never goes lower
+     * @param maxLimit
+     *            the limit never goes higher
+     * @param maxQueuedPerResource
+     *            most requests waiting on one resource
+     * @param targetAbortRatio
+     *            abort ratio over which the limit is decreased
+     * @param targetWait
+     *            mean lock wait in milliseconds over which the limit is
+     *            decreased
+     * @param overload
+     *            shed or delay BEGINs over the limit
+     */
+    public AdaptiveAdmissionControl(int minLimit, int maxLimit,
+            int maxQueuedPerResource, double targetAbortRatio,
+            long targetWait, Overload overload) {
+        super(maxLimit, maxQueuedPerResource, Integer.MAX_VALUE, 1, overload);
+        if (minLimit < 1 || minLimit > maxLimit)
+            throw new IllegalArgumentException("bad limits [" + minLimit
+                    + ", " + maxLimit + "]");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetAbortRatio = targetAbortRatio;
+        this.targetWaitNanos = targetWait * 1000000L;
+        this.limit = minLimit;
+    }
+
+    @Override
+    public int limit() {
+        return (int) limit;
+    }
+
+    @Override
+    public String refuse(int active, int waiting) {
+        String reason = super.refuse(active, waiting);
+        if (reason != null)
+            limited = true;
+        return reason;
+    }
+
+    @Override
+    public void finish(boolean abort) {
+        super.finish(abort);
+        if (abort)
+            aborts++;
+        else
+            commits++;
+        this.adjust();
+    }
+
+    @Override
+    public void waited(long nanos) {
+        waits++;
+        waitNanos += nanos;
+    }
+
+    /**
+     * End the period if it is long enough, and change the limit
+     */
+    private void adjust() {
+        long now = System.nanoTime();
+        long elapsed = now - periodStart;
+        int finished = commits + aborts;
+        if (elapsed < PERIOD * 1000000L || finished < MIN_SAMPLE)
+            return;
+
+        double throughput = commits * 1e9 / elapsed;
+        double abortRatio = (double) aborts / finished;
+        long meanWait = waits == 0 ? 0 : waitNanos / waits;
+        double before = limit;
+        String why;
+        if (abortRatio > targetAbortRatio || meanWait > targetWaitNanos) {
+            limit = Math.max(minLimit, limit * DECREASE);
+            why = "abort ratio " + abortRatio + ", mean wait "
+                    + meanWait / 1000 + "us";
+        } else if (limited
+                && throughput >= lastThroughput * (1 - TOLERANCE)) {
+            limit = Math.min(maxLimit, limit + 1);
+            why = "throughput " + (long) throughput + "/s";
+        } else if (limited) {
+            limit = Math.max(minLimit, limit - 1);
+            why = "throughput dropped to " + (long) throughput + "/s";
+        } else {
+            why = null;
+        }
+        if ((int) before != (int) limit)
+            System.out.println("concurrency limit " + (int) before + " -> "
+                    + (int) limit + ", " + why);
+
+        lastThroughput = throughput;
+        periodStart = now;
+        commits = 0;
+        aborts = 0;
+        waits = 0;
+        waitNanos = 0;
+        limited = false;
+    }
+}
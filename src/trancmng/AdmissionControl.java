@@ -0,0 +1,156 @@
+package trancmng;
+
+/**
+ * Limits of {@link ImpTransactionManager} under overload. <br>
+ * <br>
+ * At most maxActive read write transactions run at a time. A new BEGIN is
+ * also refused while the waiting list is longer than maxWaiting, or while
+ * the ratio of aborts among the last finished transactions is over
+ * maxAbortRatio. A refused BEGIN is shed, answered ABORTED, or delayed: the
+ * transaction is held with all its following requests, and begins when the
+ * load allows, in arrival order. <br>
+ * <br>
+ * A request that would wait on a resource with maxQueuedPerResource requests
+ * waiting already aborts its transaction instead. <br>
+ * Read only transactions take no lock and are always admitted.
+ * 
+ */
+public class AdmissionControl {
+
+    /**
+     * What happens to a BEGIN when the load is too high
+     */
+    public enum Overload {
+        SHED, DELAY
+    }
+
+    /**
+     * number of finished transactions the abort ratio is computed on
+     */
+    static final int WINDOW = 64;
+
+    private final int maxActive;
+
+    private final int maxQueuedPerResource;
+
+    private final int maxWaiting;
+
+    private final double maxAbortRatio;
+
+    private final Overload overload;
+
+    /**
+     * outcome of the last finished transactions, true for aborted
+     */
+    private final boolean[] outcomes = new boolean[WINDOW];
+
+    /**
+     * slot of the next outcome
+     */
+    private int next = 0;
+
+    /**
+     * number of outcomes recorded, at most WINDOW
+     */
+    private int finished = 0;
+
+    private int aborted = 0;
+
+    /**
+     * @param maxActive
+     *            most read write transactions running at a time
+     * @param maxQueuedPerResource
+     *            most requests waiting on one resource
+     * @param maxWaiting
+     *            size of the waiting list over which no transaction begins
+     * @param maxAbortRatio
+     *            ratio of aborted transactions over which no transaction
+     *            begins, 1 for no limit
+     * @param overload
+     *            shed or delay refused BEGINs
+     */
+    public AdmissionControl(int maxActive, int maxQueuedPerResource,
+            int maxWaiting, double maxAbortRatio, Overload overload) {
+        if (maxActive < 1 || maxQueuedPerResource < 1 || maxWaiting < 1)
+            throw new IllegalArgumentException("limits must be positive");
+        this.maxActive = maxActive;
+        this.maxQueuedPerResource = maxQueuedPerResource;
+        this.maxWaiting = maxWaiting;
+        this.maxAbortRatio = maxAbortRatio;
+        this.overload = overload;
+    }
+
+    public Overload getOverload() {
+        return overload;
+    }
+
+    /**
+     * @param active
+     *            number of running read write transactions
+     * @param waiting
+     *            size of the waiting list
+     * @return null if a transaction can begin, otherwise why it can not
+     */
+    public String refuse(int active, int waiting) {
+        if (active >= this.limit())
+            return "too many transactions running: " + active;
+        // without running transaction, the waiting list and the abort ratio
+        // would not change any more
+        if (active == 0)
+            return null;
+        if (waiting > maxWaiting)
+            return "waiting list too long: " + waiting;
+        if (finished == WINDOW && this.abortRatio() > maxAbortRatio)
+            return "abort ratio too high: " + this.abortRatio();
+        return null;
+    }
+
+    /**
+     * Most read write transactions running at a time
+     */
+    public int limit() {
+        return maxActive;
+    }
+
+    /**
+     * @param queued
+     *            number of requests waiting on a resource
+     * @return true if one more request can wait on it
+     */
+    public boolean canQueue(int queued) {
+        return queued < maxQueuedPerResource;
+    }
+
+    /**
+     * Record the outcome of a read write transaction
+     * 
+     * @param abort
+     *            true if it was aborted
+     */
+    public void finish(boolean abort) {
+        if (finished == WINDOW && outcomes[next])
+            aborted--;
+        outcomes[next] = abort;
+        if (abort)
+            aborted++;
+        next = (next + 1) % WINDOW;
+        if (finished < WINDOW)
+            finished++;
+    }
+
+    /**
+     * Record the time a request spent in the waiting list before it was
+     * executed, or aborted. Ignored here, see {@link AdaptiveAdmissionControl}
+     * 
+     * @param nanos
+     */
+    public void waited(long nanos) {
+    }
+
+    /**
+     * @return ratio of aborts among the last finished transactions
+     */
+    public double abortRatio() {
+        return finished == 0 ? 0 : (double) aborted / finished;
+    }
+}
@@ -0,0 +1,247 @@
+package trancmng;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import entity.Request;
+import entity.Response;
+
+/**
+ * Asynchronous front of {@link ImpTransactionManager}. Requests can be
+ * submitted from any thread and each one gets a future of its
+ * {@link Response}. <br>
+ * <br>
+ * The transaction manager is not thread safe, so one engine thread takes the
+ * submitted requests and hands them to it. All requests submitted while the
+ * engine is busy are handled together in its next round, so a client can
+ * issue many operations of one transaction, and many transactions, without
+ * waiting for each response. The requests of one client are handled in the
+ * order they are submitted. <br>
+ * <br>
+ * A request that goes to the waiting list completes when it is retried
+ * successfully, or when its transaction is aborted. Each submitted request
+ * must be a distinct object.
+ * 
+ */
+public class AsyncTransactionManager implements TransactionManager,
+        ResponseListener {
+
+    private final ImpTransactionManager tm;
+
+    /**
+     * requests submitted and not handled by the engine yet
+     */
+    private final BlockingQueue<Request> submitted;
+
+    /**
+     * futures of the requests handed to the transaction manager and not
+     * answered yet. Only used by the engine thread.
+     */
+    private final Map<Request, CompletableFuture<Response>> pending;
+
+    /**
+     * futures of the submitted requests, until the engine takes them
+     */
+    private final Map<Request, CompletableFuture<Response>> handing;
+
+    private final Thread engine;
+
+    /**
+     * false once shut down, only set while holding the lock of handing, so a
+     * request is never added to handing after it has been emptied
+     */
+    private volatile boolean running;
+
+    /**
+     * milliseconds without request after which the engine checks the sites
+     */
+    static final long CHECK_INTERVAL = 100;
+
+    /**
+     * number of responses given, only used by the engine thread
+     */
+    private long responses = 0;
+
+    /**
+     * Start the engine thread on the given transaction manager. The
+     * transaction manager should not be used directly afterwards.
+     * 
+     * @param tm
+     */
+    public AsyncTransactionManager(ImpTransactionManager tm) {
+        this.tm = tm;
+        this.submitted = new LinkedBlockingQueue<Request>();
+        this.pending = new IdentityHashMap<Request, CompletableFuture<Response>>();
+        this.handing = new IdentityHashMap<Request, CompletableFuture<Response>>();
+        this.tm.setResponseListener(this);
+        this.running = true;
+        this.engine = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTransactionManager.this.loop();
+            }
+        }, "transaction-engine");
+        this.engine.setDaemon(true);
+        this.engine.start();
+    }
+
+    /**
+     * Submit one request
+     * 
+     * @param request
+     * @return the future of its response
+     */
+    public CompletableFuture<Response> submit(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<Response>();
+        synchronized (handing) {
+            if (!running) {
+                future.completeExceptionally(new IllegalStateException(
+                        "transaction manager is shut down"));
+                return future;
+            }
+            handing.put(request, future);
+        }
+        submitted.offer(request);
+        return future;
+    }
+
+    /**
+     * Submit requests in order, they are handled in the same round
+     * 
+     * @param requests
+     * @return the futures of their responses, in the same order
+     */
+    public List<CompletableFuture<Response>> submitAll(List<Request> requests) {
+        List<CompletableFuture<Response>> result = new ArrayList<CompletableFuture<Response>>(
+                requests.size());
+        for (Request request : requests)
+            result.add(this.submit(request));
+        return result;
+    }
+
+    /**
+     * Same as submitting each request, without waiting for the responses.
+     */
+    @Override
+    public void handleRequests(Queue<Request> requests) {
+        Request request;
+        while ((request = requests.poll()) != null)
+            this.submit(request);
+    }
+
+    /**
+     * Size of the waiting list of the transaction manager after its last
+     * round, see {@link ImpTransactionManager#waitingCount()}
+     * 
+     * @return number of waiting requests
+     */
+    public int waitingCount() {
+        return tm.waitingCount();
+    }
+
+    /**
+     * Stop the engine thread. The requests not answered are completed
+     * exceptionally.
+     */
+    public void shutdown() {
+        synchronized (handing) {
+            running = false;
+        }
+        engine.interrupt();
+        try {
+            engine.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IllegalStateException down = new IllegalStateException(
+                "transaction manager is shut down");
+        synchronized (handing) {
+            for (CompletableFuture<Response> future : handing.values())
+                future.completeExceptionally(down);
+            handing.clear();
+        }
+        for (CompletableFuture<Response> future : pending.values())
+            future.completeExceptionally(down);
+        pending.clear();
+    }
+
+    @Override
+    public void onResponse(Response response) {
+        responses++;
+        CompletableFuture<Response> future = pending.remove(response.request);
+        if (future != null)
+            future.complete(response);
+    }
+
+    /**
+     * The engine thread, hands all submitted requests to the transaction
+     * manager in each round
+     */
+    private void loop() {
+        // remembers the request being handled, to fail it if it throws
+        final Request[] current = new Request[1];
+        Queue<Request> round = new LinkedList<Request>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Request poll() {
+                current[0] = super.poll();
+                return current[0];
+            }
+        };
+        // the waiting list is retried at the beginning of a round only, so
+        // after a round that answered some request, a round follows at once
+        // even without new request, as locks may have been released
+        long idle = CHECK_INTERVAL;
+        while (running) {
+            Request first;
+            try {
+                first = submitted.poll(idle, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null && tm.waitingCount() == 0) {
+                // no request for a while, still follow the failure detector
+                try {
+                    tm.checkSites();
+                } catch (RuntimeException e) {
+                    System.err.println("can not check the sites: " + e);
+                }
+                idle = CHECK_INTERVAL;
+                continue;
+            }
+            if (first != null)
+                round.offer(first);
+            submitted.drainTo(round);
+            long answered = responses;
+            synchronized (handing) {
+                for (Request request : round)
+                    pending.put(request, handing.remove(request));
+            }
+            try {
+                tm.handleRequests(round);
+            } catch (RuntimeException e) {
+                // the transaction manager keeps running, fail the request
+                // that throws and the ones not handed yet
+                round.offer(current[0]);
+                for (Request request : round) {
+                    CompletableFuture<Response> future = pending
+                            .remove(request);
+                    if (future != null)
+                        future.completeExceptionally(e);
+                }
+                round.clear();
+            }
+            idle = responses != answered && tm.waitingCount() > 0 ? 0
+                    : CHECK_INTERVAL;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package trancmng;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import site.Site;
+import trancmng.entity.siteStatus;
+
+/**
+ * Timeout based failure detector. Each site is sent a heartbeat by its own
+ * thread every interval. A site that misses heartbeats is
+ * {@link siteStatus#Suspected}, and {@link siteStatus#Down} when it has not
+ * answered for the down timeout. A site answering but not running is
+ * {@link siteStatus#Failed}. <br>
+ * <br>
+ * The detector only observes, it never changes a site. The transaction
+ * manager reads the status at the beginning of each round, see
+ * {@link ImpTransactionManager#checkSites()}.
+ * 
+ */
+public class FailureDetector {
+
+    /**
+     * milliseconds between two heartbeats of a site
+     */
+    private final long interval;
+
+    /**
+     * milliseconds without answer before a site is down
+     */
+    private final long downAfter;
+
+    private final Collection<Site> sites;
+
+    private final Map<Site, siteStatus> status;
+
+    /**
+     * time of the last answer of each site
+     */
+    private final Map<Site, Long> lastAnswer;
+
+    /**
+     * incremented when the status of a site is reset, so a heartbeat sent
+     * before does not overwrite it
+     */
+    private final Map<Site, Integer> epoch;
+
+    private final List<Thread> threads;
+
+    private volatile boolean running;
+
+    public FailureDetector(Collection<Site> sites, long interval, long downAfter) {
+        this.sites = sites;
+        this.interval = interval;
+        this.downAfter = downAfter;
+        this.status = new ConcurrentHashMap<Site, siteStatus>();
+        this.lastAnswer = new ConcurrentHashMap<Site, Long>();
+        this.epoch = new ConcurrentHashMap<Site, Integer>();
+        this.threads = new ArrayList<Thread>();
+        long now = System.currentTimeMillis();
+        for (Site site : sites) {
+            this.status.put(site, siteStatus.Up);
+            this.lastAnswer.put(site, now);
+            this.epoch.put(site, 0);
+        }
+    }
+
+    /**
+     * Start sending heartbeats
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        for (final Site site : sites) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FailureDetector.this.beat(site);
+                }
+            }, "heartbeat-site-" + site.getSiteNum());
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop sending heartbeats
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Thread thread : threads)
+            thread.interrupt();
+        threads.clear();
+    }
+
+    /**
+     * Can be called from any thread
+     * 
+     * @param site
+     * @return the last status seen of the site
+     */
+    public siteStatus statusOf(Site site) {
+        siteStatus it = status.get(site);
+        return it == null ? siteStatus.Up : it;
+    }
+
+    /**
+     * Set the status of a site after it has been failed or recovered, until
+     * the next heartbeat. Can be called from any thread
+     * 
+     * @param site
+     * @param to
+     */
+    public synchronized void reset(Site site, siteStatus to) {
+        epoch.put(site, epoch.get(site) + 1);
+        lastAnswer.put(site, System.currentTimeMillis());
+        status.put(site, to);
+    }
+
+    /**
+     * Send heartbeats to one site until stopped
+     */
+    private void beat(Site site) {
+        while (running) {
+            int sent = epoch.get(site);
+            long now = System.currentTimeMillis();
+            boolean answered = site.heartbeat();
+            boolean siteRunning = answered && site.isRunning();
+            synchronized (this) {
+                if (sent != epoch.get(site)) {
+                    // reset meanwhile, the answer is out of date
+                } else if (answered) {
+                    lastAnswer.put(site, now);
+                    status.put(site, siteRunning ? siteStatus.Up
+                            : siteStatus.Failed);
+                } else if (now - lastAnswer.get(site) >= downAfter) {
+                    if (status.put(site, siteStatus.Down) != siteStatus.Down)
+                        System.err.println("site [" + site.getSiteNum()
+                                + "] does not answer heartbeats");
+                } else {
+                    status.put(site, siteStatus.Suspected);
+                }
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
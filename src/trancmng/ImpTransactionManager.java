@@ -1,18 +1,31 @@
 package trancmng;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import entity.Request;
 import entity.RequestType;
+import entity.ResourceOrder;
+import entity.Response;
+import entity.ResponseType;
+import entity.TimeStamp;
+import placement.Placement;
 import site.Site;
+import site.SiteUnreachableException;
+import trancmng.entity.siteStatus;
 import trancmng.entity.tranStatus;
 import trancmng.entity.transactionEntity;
 
@@ -39,6 +52,11 @@ public class ImpTransactionManager implements TransactionManager {
      */
     private Set<String> resources;
 
+    /**
+     * The resources of {@link #resources} in resource order, for scans
+     */
+    private TreeSet<String> ordered;
+
     /**
      * A map from the resource to the set of sites that holds it
      */
@@ -47,7 +65,7 @@ public class ImpTransactionManager implements TransactionManager {
     /**
      * The Queue of waiting requests
      */
-    private Queue<Request> waitingList;
+    private WaitingList waitingList;
 
     /**
      * A map from Site to the set of transactions that have visiting it.<br>
@@ -63,6 +81,159 @@ public class ImpTransactionManager implements TransactionManager {
      */
     private Map<String, transactionEntity> transInfo;
 
+    /**
+     * Begin time stamps of the running read only transactions. The first one
+     * is sent to the sites on each commit, so they know which versions to keep.
+     */
+    private TreeSet<Integer> readOnlyBegins;
+
+    /**
+     * Commit time stamp of the last transaction that wrote each resource.
+     * A read only transaction begun before it needs an older version than
+     * the committed one.
+     */
+    private Map<String, Integer> lastWritten;
+
+    /**
+     * Size of the waiting list after the last round, readable from other
+     * threads
+     */
+    private volatile int waitingSize;
+
+    /**
+     * Receives the response of each request, null if nobody listens
+     */
+    private ResponseListener listener;
+
+    /**
+     * Decides which sites hold which resource. null if the sites are asked
+     * instead.
+     */
+    private Placement placement;
+
+    /**
+     * Whether each site is running, as known by this transaction manager. The
+     * sites are not asked on each request, the status only changes by fail
+     * and recover, requested or found by the failure detector.
+     */
+    private Map<Site, Boolean> running;
+
+    /**
+     * Watches the sites, null if failures are only known by fail requests
+     */
+    private FailureDetector detector;
+
+    /**
+     * Sites failed because the failure detector found them down or failed,
+     * they are recovered when they answer again
+     */
+    private Set<Site> detectedDown;
+
+    /**
+     * Limits under overload, null if every transaction is admitted
+     */
+    private AdmissionControl admission;
+
+    /**
+     * Number of running read write transactions
+     */
+    private int active;
+
+    /**
+     * Transactions held at their begin by the admission control, in arrival
+     * order, with their requests received since
+     */
+    private Map<String, Queue<Request>> held;
+
+    /**
+     * The last request put in the waiting list
+     */
+    private Request lastQueued;
+
+    /**
+     * Restarts allowed for a transaction killed by wait-die, 0 if it is
+     * aborted instead
+     */
+    private int restartLimit;
+
+    /**
+     * Transactions killed by wait-die and waiting for their restart, with the
+     * requests to replay and the requests received since
+     */
+    private Map<String, Queue<Request>> restarting;
+
+    /**
+     * Requests replayed by a restart. They have been answered before, so their
+     * next response is not given.
+     */
+    private Set<Request> replaying;
+
+    /**
+     * Number of restarts done
+     */
+    private int restarts;
+
+    /**
+     * The procedures defined, by name
+     */
+    private Map<String, Procedure> procedures;
+
+    /**
+     * The calls begun and not finished, by transaction
+     */
+    private Map<String, Procedure.Call> calls;
+
+    /**
+     * Calls run in the order they came instead of by wait die, see
+     * {@link #setDeterministic(boolean)}
+     */
+    private boolean deterministic;
+
+    /**
+     * The calls received in deterministic mode and not run yet, in their order
+     */
+    private Map<String, Procedure.Call> sequenced;
+
+    /**
+     * Rounds each sequenced call has waited for the locks of interactive
+     * transactions
+     */
+    private Map<String, Integer> lockedOut;
+
+    /**
+     * The time stamp at which each site was last recovered, 0 if it has been
+     * up since the start. A site up since before a read only transaction
+     * began has committed all it was sent until then.
+     */
+    private Map<Site, Integer> upSince;
+
+    /**
+     * Turns the replica tried first by read only transactions
+     */
+    private int readOnlyTurn;
+
+    /**
+     * Values read by read only transactions, by resource and commit epoch,
+     * null if they are always read on the sites
+     */
+    private ReadCache readCache;
+
+    /**
+     * The backoff of the n-th restart is 2^n rounds, up to 2^MAX_BACKOFF
+     */
+    static final int MAX_BACKOFF = 4;
+
+    /**
+     * Rounds a sequenced call waits for the locks of interactive transactions
+     * before they are aborted
+     */
+    static final int MAX_LOCKED_OUT = 16;
+
+    /**
+     * Values kept by the read cache by default
+     */
+    static final int READ_CACHE = 4096;
+
     /**
      * The only constructor of is implementation. To use this transaction
      * manager, the caller must generate the data of the sites and gives a map
@@ -80,15 +251,57 @@ public class ImpTransactionManager implements TransactionManager {
      */
     public ImpTransactionManager(Map<String, Site> siteMap,
             Set<String> resources) {
+        this(siteMap, resources, null);
+    }
+
+    /**
+     * Same as {@link #ImpTransactionManager(Map, Set)}, except that the sites
+     * holding each resource are given by the placement instead of asking every
+     * site. The site named by String.valueOf(siteNumber) in the siteMap is the
+     * site of that number in the placement.
+     * 
+     * @param siteMap
+     *            Map from "site name" to "site reference"
+     * @param resources
+     *            Set of all possible "resources (variables) name"
+     * @param placement
+     *            the placement used to create the data of the sites, or null
+     */
+    public ImpTransactionManager(Map<String, Site> siteMap,
+            Set<String> resources, Placement placement) {
+        this.placement = placement;
         this.sites = siteMap.values();
         this.siteMap = siteMap;
         this.resources = resources;
         this.sitesAvaliable = new HashMap<String, List<Site>>();
-        this.waitingList = new LinkedList<Request>();
+        this.waitingList = new WaitingList();
         this.visitingTrans = new HashMap<Site, Set<String>>();
         for (Site site : sites)
             this.visitingTrans.put(site, new HashSet<String>());
         this.transInfo = new HashMap<String, transactionEntity>();
+        this.readOnlyBegins = new TreeSet<Integer>();
+        this.lastWritten = new HashMap<String, Integer>();
+        this.running = new HashMap<Site, Boolean>();
+        for (Site site : sites)
+            this.running.put(site, site.isRunning());
+        this.upSince = new HashMap<Site, Integer>();
+        for (Site site : sites)
+            this.upSince.put(site, 0);
+        this.readOnlyTurn = 0;
+        this.detectedDown = new HashSet<Site>();
+        this.active = 0;
+        this.held = new LinkedHashMap<String, Queue<Request>>();
+        this.restartLimit = 0;
+        this.restarting = new LinkedHashMap<String, Queue<Request>>();
+        this.replaying = Collections
+                .newSetFromMap(new IdentityHashMap<Request, Boolean>());
+        this.restarts = 0;
+        this.procedures = new HashMap<String, Procedure>();
+        this.calls = new HashMap<String, Procedure.Call>();
+        this.deterministic = false;
+        this.sequenced = new LinkedHashMap<String, Procedure.Call>();
+        this.lockedOut = new HashMap<String, Integer>();
+        this.readCache = new ReadCache(READ_CACHE, TimeStamp.getit());
         this.init();
     }
 
@@ -96,7 +309,8 @@ public class ImpTransactionManager implements TransactionManager {
      * Do initialization work. Should only be called by Constructor
      * 
      * The only Work done here in this implementation is for each resources, ask
-     * what site contains it and store this information
+     * the placement (or every site if there is no placement) what site contains
+     * it and store this information
      */
     private void init() {
         // Create the map from resource to Sites that contains it
@@ -104,19 +318,153 @@ public class ImpTransactionManager implements TransactionManager {
         Set<String> removeResources = new HashSet<String>();
         for (String resource : resources) {
             List<Site> temp = new LinkedList<Site>();
-            for (Site site : sites)
-                if (site.containsResource(resource))
-                    temp.add(site);
+            if (placement != null) {
+                for (Integer siteNum : placement.sitesOf(resource)) {
+                    Site site = siteMap.get(String.valueOf(siteNum));
+                    if (site != null)
+                        temp.add(site);
+                }
+            } else {
+                for (Site site : sites)
+                    if (site.containsResource(resource))
+                        temp.add(site);
+            }
             if (temp.size() > 0)
                 sitesAvaliable.put(resource, temp);
             else
                 removeResources.add(resource);
         }
         this.resources.removeAll(removeResources);
+
+        this.ordered = new TreeSet<String>(ResourceOrder.INSTANCE);
+        for (String resource : this.resources)
+            if (ResourceOrder.isValid(resource))
+                this.ordered.add(resource);
+    }
+
+    /**
+     * Use a failure detector. Sites it finds down are failed, and recovered
+     * when they answer again, at the beginning of each round.
+     * 
+     * @param detector
+     *            the detector, null to only rely on fail requests
+     */
+    public void setFailureDetector(FailureDetector detector) {
+        this.detector = detector;
+    }
+
+    /**
+     * Use admission control
+     * 
+     * @param admission
+     *            the limits, null to admit every transaction
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Restart the transactions killed by wait-die instead of aborting them.
+     * The transaction begins again with its time stamp after a backoff, and
+     * its reads and writes are replayed. If a replayed read returns another
+     * value than before, what the client did with it is out of date, and the
+     * transaction is aborted.
+     * 
+     * @param limit
+     *            restarts allowed for a transaction, 0 to abort them
+     */
+    public void setAutoRestart(int limit) {
+        this.restartLimit = limit;
+    }
+
+    /**
+     * @return number of restarts done
+     */
+    public int restartCount() {
+        return this.restarts;
+    }
+
+    /**
+     * Run the calls deterministically. The calls received in a round are put
+     * in sequence, after the calls of the rounds before, in the order they
+     * came. At the end of each round, the calls run in that order, each one
+     * after the calls before it it conflicts with. Their read and write sets
+     * are known, so they never wait for each other holding locks, and none
+     * is aborted by wait die or restarted. <br>
+     * A call still waits for the locks of interactive transactions. After
+     * MAX_LOCKED_OUT rounds, the interactive transactions holding them are
+     * aborted. A call also begins its transaction only when the admission
+     * control allows it, it is delayed and never shed.
+     * 
+     * @param deterministic
+     *            false to run each call when it comes, with wait die
+     */
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
+    /**
+     * Keep the values read by read only transactions. The transactions that
+     * begin between the same two commits see the same values, so the reads
+     * of the others are answered without going to the sites. The cache is
+     * on by default with {@link #READ_CACHE} values.
+     * 
+     * @param capacity
+     *            values kept, the least recently used are dropped, 0 to always
+     *            read on the sites
+     */
+    public void setReadCache(int capacity) {
+        this.readCache = capacity > 0 ? new ReadCache(capacity,
+                TimeStamp.getit()) : null;
+    }
+
+    /**
+     * @return number of read only reads answered by the read cache
+     */
+    public int readCacheHits() {
+        return this.readCache == null ? 0 : this.readCache.hits();
+    }
+
+    /**
+     * Set the listener receiving the response of each request
+     * 
+     * @param listener
+     *            the listener, null to stop listening
+     */
+    public void setResponseListener(ResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Give the response of a request to the listener
+     * 
+     * @param request
+     * @param type
+     * @param value
+     *            the value read, the dump, the abort reason or the error
+     *            message
+     */
+    private void respond(Request request, ResponseType type, String value) {
+        // a replayed request has its response already
+        if (this.replaying.remove(request))
+            return;
+        if (this.listener != null)
+            this.listener.onResponse(new Response(request, type, value));
     }
 
     /**
-     * Checking the time stamps of the transactions return if "transaction"
+     * Print the error message to System.out, and respond with it
+     * 
+     * @param request
+     * @param message
+     */
+    private void error(Request request, String message) {
+        System.out.println(message);
+        this.respond(request, ResponseType.ERROR, message);
+    }
+
+    /**
+     * Checking the ranks of the transactions return if "transaction"
      * needs to aborted when it conflicts with the transactions in Set
      * "conflicts" <br>
      * return null if it just wait return one transaction that it conflicts with
@@ -133,18 +481,65 @@ public class ImpTransactionManager implements TransactionManager {
     private String needAbort(String transaction, Set<String> conflicts) {
         transactionEntity thisone = transInfo.get(transaction);
         for (String conflict : conflicts)
-            if (thisone.timestamp > transInfo.get(conflict).timestamp)
+            if (transInfo.get(conflict).isOlderThan(thisone))
                 return conflict;
         return null;
     }
 
+    /**
+     * Wait die for a read or write request that conflicts with the waiting
+     * list.
+     * 
+     * @param request
+     * @return an older transaction with a conflicting request in the waiting
+     *         list, null if the request can wait
+     */
+    private String needAbortForWaiting(Request request) {
+        if (request.requestType != RequestType.READ
+                && request.requestType != RequestType.WRITE
+                && request.requestType != RequestType.SCAN)
+            return null;
+        transactionEntity tempT = this.transInfo.get(request.transaction);
+        if (tempT == null || tempT.status != tranStatus.Running)
+            return null;
+        Set<String> conflicts = new HashSet<String>();
+        for (Request waitingRequest : this.waitingList)
+            if (waitingRequest.transaction != null
+                    && !request.transaction.equals(waitingRequest.transaction)
+                    && overlap(request, waitingRequest))
+                conflicts.add(waitingRequest.transaction);
+        return this.needAbort(request.transaction, conflicts);
+    }
+
+    /**
+     * Check if two read, write or scan requests touch a same resource, and
+     * one of them writes it
+     * 
+     * @param request
+     * @param other
+     * @return true if they conflict
+     */
+    private static boolean overlap(Request request, Request other) {
+        if (request.requestType == RequestType.SCAN)
+            return other.requestType == RequestType.WRITE
+                    && ResourceOrder.between(other.resource, request.resource,
+                            request.value);
+        if (other.requestType == RequestType.SCAN)
+            return request.requestType == RequestType.WRITE
+                    && ResourceOrder.between(request.resource, other.resource,
+                            other.value);
+        return request.resource.equals(other.resource)
+                && (other.requestType == RequestType.WRITE
+                        || request.requestType == RequestType.WRITE);
+    }
+
     /**
      * Check if the request is conflict with the conflict in the waiting list.
      * Error message will be print to system.out
      * 
      * <br>
      * Conflict Rules: <br>
-     * begin beginro dump fail recover abort <br>
+     * begin beginro dump fail recover abort migrate <br>
      * >> no conflict <br>
      * read only read <br>
      * >> no conflict <br>
@@ -165,22 +560,34 @@ public class ImpTransactionManager implements TransactionManager {
         case FAIL:
         case RECOVER:
         case ABORT:
+        case MIGRATE:
+        case DEFINE:
+            return false;
+        case CALL:
+            // checked with its resources by the call itself
             return false;
         case READ:
-            if (this.transInfo.get(request.transaction).isReadOnly())
+        case SCAN:
+            // a refused or unknown transaction is reported by the caller
+            if (this.transInfo.containsKey(request.transaction)
+                    && this.transInfo.get(request.transaction).isReadOnly())
                 return false;
         case WRITE:
-            for (Request waitingRequest : this.waitingList)
-                if (waitingRequest.resource.equals(request.resource))
-                    if (waitingRequest.requestType == RequestType.WRITE
-                            || request.requestType == RequestType.WRITE) {
+            // scans are counted on their first resource
+            if (request.requestType == RequestType.SCAN
+                    || this.waitingList.queuedOn(request.resource) > 0
+                    || request.requestType == RequestType.WRITE
+                    && this.waitingList.scans() > 0)
+                for (Request waitingRequest : this.waitingList)
+                    if (overlap(request, waitingRequest)) {
                         System.out.println("conflict with request : ["
-                                + waitingRequest + "], going to waiting list");
+                                + waitingRequest
+                                + "], going to waiting list");
                         return true;
                     }
         case END:
             for (Request waitingRequest : this.waitingList)
-                if (waitingRequest.transaction.equals(request.transaction)) {
+                if (request.transaction.equals(waitingRequest.transaction)) {
                     System.out.println("conflict with request : ["
                             + waitingRequest + "], going to waiting list");
                     return true;
@@ -204,7 +611,7 @@ public class ImpTransactionManager implements TransactionManager {
     private boolean requestResourceExists(Request request) {
         // check if this resource is contained in some site
         if (!this.resources.contains(request.resource)) {
-            System.out.println("error: no site hold the resources ["
+            this.error(request, "error: no site hold the resources ["
                     + request.resource + "]");
             return false;
         }
@@ -222,7 +629,7 @@ public class ImpTransactionManager implements TransactionManager {
         if (this.transInfo.containsKey(request.transaction))
             return true;
 
-        System.out.println("error: transaction [" + request.transaction
+        this.error(request, "error: transaction [" + request.transaction
                 + "] have not begun");
         return false;
     }
@@ -249,9 +656,11 @@ public class ImpTransactionManager implements TransactionManager {
         case Aborted:
             System.out.println("error: transaction [" + request.transaction
                     + "] have been aborted");
+            this.respond(request, ResponseType.ABORTED, "transaction ["
+                    + request.transaction + "] have been aborted");
             return false;
         case Commited:
-            System.out.println("error: transaction [" + request.transaction
+            this.error(request, "error: transaction [" + request.transaction
                     + "] have been commited");
             return false;
         }
@@ -272,15 +681,20 @@ public class ImpTransactionManager implements TransactionManager {
      */
     public void handleRequests(Queue<Request> requests) {
 
+        this.checkSites();
+        this.restartDue();
+
         if (this.waitingList.size() > 0) {
+            Queue<Request> waiting = this.waitingList.drain();
             System.out.println("Trying waiting requests:");
-            for (Request request : this.waitingList)
+            for (Request request : waiting)
                 System.out.println(request);
 
             System.out.println("----------------------");
-            this.handleWaitingList();
+            this.handleWaitingList(waiting);
             System.out.println("----------------------");
         }
+        this.admitHeld();
 
         System.out.println("Trying new requests:");
         Request tempR;
@@ -288,9 +702,76 @@ public class ImpTransactionManager implements TransactionManager {
             System.out.println(">>trying rquest : [" + tempR + "]");
             this.handleRequest(tempR);
         }
+        this.admitHeld();
+        if (this.sequenced.size() > 0)
+            this.runSequenced();
 
         System.out.println("==========================================");
+        this.waitingSize = this.waitingList.size() + this.restarting.size()
+                + this.sequenced.size();
+    }
+
+    /**
+     * Apply what the failure detector has seen since the last call. A running
+     * site that is down, or answers but is not running, is failed as by a
+     * fail request: the transactions that visited it are aborted. A site
+     * failed this way is recovered as soon as it answers heartbeats. Sites
+     * failed by a fail request are left to recover requests. <br>
+     * Called at the beginning of each round, must be called from the thread
+     * handling the requests.
+     */
+    public void checkSites() {
+        if (this.detector == null)
+            return;
+        for (Site site : sites) {
+            siteStatus status = this.detector.statusOf(site);
+            if (this.isRunning(site)
+                    && (status == siteStatus.Down || status == siteStatus.Failed)) {
+                System.out.println("site [" + site.getSiteNum() + "] is "
+                        + status + ", found by heartbeats");
+                // a failed site has lost its locks already
+                this.siteDown(site, status == siteStatus.Down, "site ["
+                        + site.getSiteNum() + "] is " + status);
+                this.detectedDown.add(site);
+            } else if (this.detectedDown.contains(site)
+                    && (status == siteStatus.Up || status == siteStatus.Failed)) {
+                System.out.println("site [" + site.getSiteNum()
+                        + "] answers again, recovering");
+                this.siteUp(site);
+            }
+        }
+    }
+
+    /**
+     * A read write transaction has finished
+     * 
+     * @param abort
+     *            true if it was aborted
+     */
+    private void finished(boolean abort) {
+        this.active--;
+        if (this.admission != null)
+            this.admission.finish(abort);
+    }
+
+    /**
+     * @param site
+     * @return true if the site is running, as known by this transaction
+     *         manager
+     */
+    private boolean isRunning(Site site) {
+        return this.running.get(site);
+    }
 
+    /**
+     * Number of requests in the waiting list, of transactions waiting for
+     * their restart, and of sequenced calls, after the last round of {@link #handleRequests(Queue)}.
+     * Can be called from any thread.
+     * 
+     * @return size of the waiting list
+     */
+    public int waitingCount() {
+        return this.waitingSize;
     }
 
     /**
@@ -309,21 +790,131 @@ public class ImpTransactionManager implements TransactionManager {
      * W(t3,x), W(t3,x) will execute before W(t1,x). However, this situation is
      * rare
      */
-    private void handleWaitingList() {
-        boolean haveEnd = false;
-        Queue<Request> tempQ = this.waitingList;
-        this.waitingList = new LinkedList<Request>();
-        Request request;
-        while ((request = tempQ.poll()) != null) {
-            System.out.println(">>trying rquest : [" + request + "]");
-            if (this.handleRequest(request)
-                    && request.requestType == RequestType.END) {
-                haveEnd = true;
+    private void handleWaitingList(Queue<Request> tempQ) {
+        boolean haveEnd = true;
+        while (haveEnd) {
+            haveEnd = false;
+            Request request;
+            while ((request = tempQ.poll()) != null) {
+                System.out.println(">>trying rquest : [" + request + "]");
+                this.lastQueued = null;
+                if (this.handleRequest(request)
+                        && request.requestType == RequestType.END) {
+                    haveEnd = true;
+                }
+                if (this.lastQueued != request)
+                    this.doneWaiting(request);
+            }
+            if (haveEnd)
+                tempQ = this.waitingList.drain();
+        }
+    }
+
+    /**
+     * Begin the held transactions while the admission control allows it, and
+     * handle the requests they received meanwhile.
+     */
+    private void admitHeld() {
+        while (!this.held.isEmpty()
+                && this.admission.refuse(this.active, this.waitingList.size()) == null) {
+            Iterator<Map.Entry<String, Queue<Request>>> it = this.held
+                    .entrySet().iterator();
+            Map.Entry<String, Queue<Request>> entry = it.next();
+            it.remove();
+            System.out.println("[" + entry.getKey() + "] is admitted");
+            // the first request is the begin, or a call
+            Queue<Request> requests = entry.getValue();
+            Request first = requests.poll();
+            if (first.requestType == RequestType.CALL)
+                this.callRequest(first);
+            else
+                this.beginRequest(first);
+            Request request;
+            while ((request = requests.poll()) != null) {
+                System.out.println(">>trying rquest : [" + request + "]");
+                this.handleRequest(request);
             }
         }
+    }
+
+    /**
+     * Admission control of a BEGIN. The transaction is held or refused if the
+     * load is too high, or if other transactions are held already.
+     * 
+     * @param request
+     * @return true if the transaction can begin now
+     */
+    private boolean admit(Request request) {
+        if (this.admission == null
+                || this.transInfo.containsKey(request.transaction))
+            return true;
+        String reason = this.admission.refuse(this.active,
+                this.waitingList.size());
+        if (reason == null && this.held.isEmpty())
+            return true;
+        if (reason == null)
+            reason = "transactions held before";
+
+        if (this.admission.getOverload() == AdmissionControl.Overload.SHED) {
+            System.out.println("[" + request.transaction
+                    + "] is refused because " + reason);
+            this.respond(request, ResponseType.ABORTED, "refused: " + reason);
+            return false;
+        }
+        System.out.println("[" + request.transaction
+                + "] is held at begin because " + reason);
+        Queue<Request> requests = new LinkedList<Request>();
+        requests.add(request);
+        this.held.put(request.transaction, requests);
+        return false;
+    }
+
+    /**
+     * Put the request in the waiting list. With admission control, if too
+     * many requests wait on its resource already, its transaction is aborted
+     * instead.
+     * 
+     * @param request
+     * @return true if the request waits
+     */
+    private boolean waitFor(Request request) {
+        transactionEntity tempT = request.transaction == null ? null
+                : this.transInfo.get(request.transaction);
+        if (this.admission != null && request.resource != null
+                && tempT != null && tempT.status == tranStatus.Running
+                && !this.admission.canQueue(this.waitingList
+                        .queuedOn(request.resource))) {
+            System.out.println("[" + request.transaction
+                    + "] is aborted because too many requests wait on ["
+                    + request.resource + "]");
+            this.abortRequest(request, "too many requests waiting on ["
+                    + request.resource + "]");
+            return false;
+        }
+        this.waitingList.add(request, this.rankOf(request));
+        this.lastQueued = request;
+        return true;
+    }
+
+    /**
+     * @param request
+     * @return rank of the transaction of the request, 0 if it has none
+     */
+    private long rankOf(Request request) {
+        transactionEntity tempT = request.transaction == null ? null
+                : this.transInfo.get(request.transaction);
+        return tempT == null ? 0 : tempT.rank;
+    }
 
-        if (haveEnd)
-            this.handleWaitingList();
+    /**
+     * The request has left the waiting list, executed or aborted
+     * 
+     * @param request
+     */
+    private void doneWaiting(Request request) {
+        long waited = this.waitingList.forget(request);
+        if (waited >= 0 && this.admission != null)
+            this.admission.waited(waited);
     }
 
     /**
@@ -332,21 +923,50 @@ public class ImpTransactionManager implements TransactionManager {
      * return true if the requst is successfully handled. <br>
      * <br>
      * Supported request type: <br>
-     * begin, beginRO, read, write, abort, end, dump, fail, recover *
+     * begin, beginRO, read, write, abort, end, dump, fail, recover, migrate *
      * 
      * @param request
      * @return true if this request is successfully handled.
      */
     private boolean handleRequest(Request request) {
 
+        // the transaction is held at its begin, keep its requests in order
+        if (request.transaction != null
+                && this.held.containsKey(request.transaction)) {
+            System.out.println("[" + request.transaction
+                    + "] is held, request kept until it begins");
+            this.held.get(request.transaction).add(request);
+            return false;
+        }
+
+        // the transaction waits for its restart, replay the request after
+        if (request.transaction != null
+                && this.restarting.containsKey(request.transaction)) {
+            System.out.println("[" + request.transaction
+                    + "] is restarting, request kept until it restarts");
+            this.restarting.get(request.transaction).add(request);
+            return false;
+        }
+
         /*
          * Check if the coming request is conflict with waiting request. If so
-         * put it to waiting list. No abort here to avoid over kill
+         * put it to waiting list. Waiting behind a request is waiting for its
+         * transaction, so wait die applies as for lock holders, otherwise an
+         * older waiting request and a younger lock holder could wait for
+         * each other forever.
          */
         if (this.conflictWithWaitingQueue(request)) {
+            String older = this.needAbortForWaiting(request);
+            if (older != null) {
+                System.out.println("[" + request.transaction
+                        + "] is aborted because it is conflict with waiting ["
+                        + older + "]");
+                this.die(request, older);
+                return false;
+            }
             System.out
                     .println("conflict with waiting list, going to waiting list");
-            this.waitingList.offer(request);
+            this.waitFor(request);
             return false;
         }
 
@@ -357,6 +977,9 @@ public class ImpTransactionManager implements TransactionManager {
              * Request check is done inside the beginRequest method And should
              * be done.
              */
+            if (request.requestType == RequestType.BEGIN
+                    && !this.admit(request))
+                return false;
             return this.beginRequest(request);
 
         case READ:
@@ -406,6 +1029,38 @@ public class ImpTransactionManager implements TransactionManager {
             // site must be done, check is done inside method
             // site must exists, check is done insde method
             return this.recoverRequest(request);
+
+        case MIGRATE:
+            // sites and resource must exist, check is done inside method
+            return this.migrateRequest(request);
+
+        case DEFINE:
+            return this.defineRequest(request);
+
+        case SCAN:
+            // bounds must be resources names, transaction must be running
+            if (!ResourceOrder.isValid(request.resource)
+                    || !ResourceOrder.isValid(request.value)
+                    || ResourceOrder.INSTANCE.compare(request.resource,
+                            request.value) > 0) {
+                this.error(request, "error: scan range [" + request.resource
+                        + ", " + request.value + "] is not valid");
+                return false;
+            }
+            if (!requestTransactionLiving(request))
+                return false;
+            if (this.transInfo.get(request.transaction).isReadOnly())
+                return this.readOnlyScan(request);
+            return this.scanRequest(request);
+
+        case CALL:
+            if (this.deterministic && !this.calls.containsKey(request.transaction))
+                return this.sequenceRequest(request);
+            // a call begins its transaction, unless it is tried again
+            if (!this.calls.containsKey(request.transaction)
+                    && !this.admit(request))
+                return false;
+            return this.callRequest(request);
         }
         return false;
     }
@@ -422,39 +1077,272 @@ public class ImpTransactionManager implements TransactionManager {
     private boolean readOnlyRequest(Request request) {
 
         // Presumption: transaction exists, transaction running
-        // check each site that this transaction have snapshot,
         // [this.transInfo.get(request.transaction)] transaction Entity of the
         // transaction,
-        for (Site site : this.transInfo.get(request.transaction).visitedSites) {
-
-            // Presumption: resource exists.
-            // check if the site have the resources.
-            // [this.sitesAvaliable.get(request.resource)] is all the sites that
-            // contains the resources
-            if (!this.sitesAvaliable.get(request.resource).contains(site))
-                continue;
-
-            // check if the site is running
-            if (!site.isRunning())
-                continue;
+        transactionEntity tempT = this.transInfo.get(request.transaction);
 
-            // check if the recourse is available on that site
-            if (site.isRecovering(request.resource))
-                continue;
+        // read before by a transaction of the same epoch
+        String cached = this.readCache == null ? null : this.readCache.get(
+                request.resource, tempT.timestamp);
+        if (cached != null) {
+            System.out.println(cached);
+            this.respond(request, ResponseType.VALUE, cached);
+            return true;
+        }
 
+        // Presumption: resource exists.
+        Site site;
+        while ((site = this.readOnlySite(tempT, request.resource)) != null) {
             // send request to site and return true;
-            System.out.println(site.exeRequest(new Request(request.resource,
-                    request.transaction, RequestType.ROREAD, null)));
+            // the site resolves the snapshot at the first read
+            String value;
+            try {
+                value = site.exeRequest(new Request(request.resource,
+                        request.transaction, RequestType.ROREAD,
+                        tempT.timestamp));
+            } catch (SiteUnreachableException e) {
+                // the snapshot is on the sites, try another one
+                this.siteUnreachable(site, e.getMessage());
+                continue;
+            }
+            System.out.println(value);
+            if (this.readCache != null)
+                this.readCache.put(request.resource, tempT.timestamp, value);
+            this.respond(request, ResponseType.VALUE, value);
+            tempT.visitedSites.add(site);
             return true;
         }
+        this.noReadOnlySite(request, request.resource);
+        return false;
+    }
 
-        System.out
-                .println("["
-                        + request.transaction
-                        + "] is going into the wail list because there is no site have avaliable data currently");
+    /**
+     * The site a read only transaction reads the resource on. Any running
+     * site holding a copy up to date since the transaction began can serve
+     * it. The sites up since before the transaction began are tried first,
+     * the others may have missed commits, and the replica tried first turns
+     * at each read to spread the load.
+     * 
+     * @param tempT
+     *            the read only transaction
+     * @param resource
+     * @return the site, null if no running site can serve the read
+     */
+    private Site readOnlySite(transactionEntity tempT, String resource) {
+        // [this.sitesAvaliable.get(resource)] is all the sites that
+        // contains the resources
+        List<Site> sites = this.sitesAvaliable.get(resource);
+        int count = sites.size();
+        int turn = (this.readOnlyTurn++ & Integer.MAX_VALUE) % count;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < count; i++) {
+                Site site = sites.get((turn + i) % count);
+                if (!this.isRunning(site))
+                    continue;
+                boolean upBefore = this.upSince.get(site) < tempT.timestamp;
+                if (upBefore != (pass == 0))
+                    continue;
+                // check if the copy on the site is up to date since the
+                // transaction began
+                if (site.canRead(resource, tempT.timestamp))
+                    return site;
+            }
+        }
+        return null;
+    }
 
-        this.waitingList.add(request);
-        return false;
+    /**
+     * No running site can serve the read only request. While a site holding
+     * the resource is down, the request waits for it. Otherwise no copy will
+     * ever be as of the begin of the transaction, which is aborted instead
+     * of waiting for ever.
+     * 
+     * @param request
+     * @param resource
+     */
+    private void noReadOnlySite(Request request, String resource) {
+        for (Site site : this.sitesAvaliable.get(resource)) {
+            if (!this.isRunning(site)) {
+                System.out
+                        .println("["
+                                + request.transaction
+                                + "] is going into the wail list because there is no site have avaliable data currently");
+                this.waitFor(request);
+                return;
+            }
+        }
+        System.out.println("[" + request.transaction
+                + "] is aborted because no copy of [" + resource
+                + "] is as of its begin");
+        this.abortRequest(request, "no copy of [" + resource
+                + "] as of its begin");
+    }
+
+    /**
+     * Handle read only transaction scan, read the resources of the range from
+     * the snapshot of the transaction. Return true if handle success<br>
+     * 
+     * Presumptions: transaction exists, transaction living, range valid.
+     * 
+     * @param request
+     * @return true if handle success
+     */
+    private boolean readOnlyScan(Request request) {
+        transactionEntity tempT = this.transInfo.get(request.transaction);
+        StringBuffer values = new StringBuffer();
+        for (String resource : this.ordered.subSet(request.resource, true,
+                request.value, true)) {
+            String value = null;
+            while (value == null) {
+                Site reading = this.readOnlySite(tempT, resource);
+                if (reading == null) {
+                    this.noReadOnlySite(request, resource);
+                    return false;
+                }
+                try {
+                    value = reading.exeRequest(new Request(resource,
+                            request.transaction, RequestType.ROREAD,
+                            tempT.timestamp));
+                } catch (SiteUnreachableException e) {
+                    this.siteUnreachable(reading, e.getMessage());
+                    continue;
+                }
+                tempT.visitedSites.add(reading);
+            }
+            if (values.length() > 0)
+                values.append(", ");
+            values.append(resource + ": " + value);
+        }
+        System.out.println(values);
+        this.respond(request, ResponseType.VALUE, values.toString());
+        return true;
+    }
+
+    /**
+     * Handle normal transaction scan, read the resources from
+     * request.resource to request.value. Return true if handle success<br>
+     * <br>
+     * Each site read from is asked for the whole range at once, and takes a
+     * range lock on it: no other transaction writes a resource of the range
+     * on that site, and no copy is migrated into the range, until the
+     * transaction ends. So a scan takes one lock per site instead of one per
+     * resource, and sees no phantom. The sites are chosen in resource order,
+     * a new one only for the resources the ones before do not have up to
+     * date. <br>
+     * 
+     * Presumptions: transaction exists, transaction living, range valid.
+     * 
+     * @param request
+     * @return true if handle success
+     */
+    private boolean scanRequest(Request request) {
+        String transaction = request.transaction;
+        Set<String> range = this.ordered.subSet(request.resource, true,
+                request.value, true);
+
+        // the sites covering the range
+        List<Site> reading = new LinkedList<Site>();
+        for (String resource : range) {
+            boolean covered = false;
+            for (Site site : reading)
+                if (this.sitesAvaliable.get(resource).contains(site)
+                        && !site.isRecovering(resource))
+                    covered = true;
+            if (covered)
+                continue;
+            for (Site site : this.sitesAvaliable.get(resource))
+                if (this.isRunning(site) && !site.isRecovering(resource)) {
+                    reading.add(site);
+                    covered = true;
+                    break;
+                }
+            if (!covered) {
+                System.out
+                        .println("["
+                                + transaction
+                                + "] is abourted because there is no site have avaliable data currently");
+                this.abortRequest(request, "no site have avaliable data of ["
+                        + resource + "]");
+                return false;
+            }
+        }
+
+        // Check if there is conflict on any of them, do wait die
+        Set<String> conflicts = new HashSet<String>();
+        for (Site site : reading) {
+            Set<String> siteConflicts;
+            try {
+                siteConflicts = site.checkConflict(request);
+            } catch (SiteUnreachableException e) {
+                // choose the sites again without it
+                if (!this.unreachable(request, site, e.getMessage()))
+                    return false;
+                return this.scanRequest(request);
+            }
+            if (siteConflicts == null) {
+                System.out.println("[" + transaction
+                        + "] is going into the wail list because a copy is migrated into the range");
+                this.waitFor(request);
+                return false;
+            }
+            conflicts.addAll(siteConflicts);
+        }
+        if (conflicts.size() > 0) {
+            System.out
+                    .print("warning: There is conflict with current lockers. ");
+            String older = needAbort(transaction, conflicts);
+            if (older == null) {
+                System.out
+                        .println("["
+                                + transaction
+                                + "] is going into the wail list. Current transactions holding locks : "
+                                + conflicts.toString());
+                this.waitFor(request);
+            } else {
+                System.out.println("[" + transaction
+                        + "] is aborted because it is conflict with [" + older
+                        + "]");
+                this.die(request, older);
+            }
+            return false;
+        }
+
+        // coming here means no conflict, merge the ranges of the sites
+        Map<String, String> values = new TreeMap<String, String>(
+                ResourceOrder.INSTANCE);
+        transactionEntity tempT = this.transInfo.get(transaction);
+        for (Site site : reading) {
+            String scanned;
+            try {
+                scanned = site.exeRequest(request);
+            } catch (SiteUnreachableException e) {
+                this.lostOn(request, site, e.getMessage());
+                return false;
+            }
+            if (scanned != null && scanned.length() > 0)
+                for (String pair : scanned.split(", ")) {
+                    int equal = pair.indexOf('=');
+                    values.put(pair.substring(0, equal),
+                            pair.substring(equal + 1));
+                }
+            this.visitingTrans.get(site).add(transaction);
+            tempT.visitedSites.add(site);
+        }
+        values.keySet().retainAll(range);
+
+        // a restart replays the scan as reads of the values seen
+        StringBuffer result = new StringBuffer();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (result.length() > 0)
+                result.append(", ");
+            result.append(entry.getKey() + ": " + entry.getValue());
+            if (this.restartLimit > 0)
+                tempT.log.add(new Request(entry.getKey(), transaction,
+                        RequestType.READ, entry.getValue()));
+        }
+        System.out.println(result);
+        this.respond(request, ResponseType.VALUE, result.toString());
+        return true;
     }
 
     /**
@@ -467,14 +1355,23 @@ public class ImpTransactionManager implements TransactionManager {
      */
     private boolean readRequest(Request request) {
         String resource = request.resource;
+        transactionEntity tempT = this.transInfo.get(request.transaction);
+
+        // read or written before, the transaction still has the lock
+        Long known = tempT.values.get(resource);
+        if (known != null) {
+            String value = String.valueOf(known);
+            System.out.println("transaction [" + tempT.name + "] == " + value);
+            return this.answerRead(request, tempT, null, value);
+        }
 
         // Presumption : resource exists.
-        // try all sites that holds the key.
+        // try all sites that holds the key, the visited ones first.
         // There should be at least one site that holds this key.
-        for (Site site : sitesAvaliable.get(resource)) {
+        for (Site site : this.readOrder(tempT, resource)) {
 
             // check if the site is running
-            if (!site.isRunning())
+            if (!this.isRunning(site))
                 continue;
 
             // check if the resource on the site is available
@@ -482,7 +1379,14 @@ public class ImpTransactionManager implements TransactionManager {
                 continue;
 
             // Check if there is conflict
-            Set<String> conflicts = site.checkConflict(request);
+            Set<String> conflicts;
+            try {
+                conflicts = site.checkConflict(request);
+            } catch (SiteUnreachableException e) {
+                if (!this.unreachable(request, site, e.getMessage()))
+                    return false;
+                continue;
+            }
 
             // If there is conflict.
             // Do wait die
@@ -499,19 +1403,25 @@ public class ImpTransactionManager implements TransactionManager {
                                     + request.transaction
                                     + "] is going into the wail list. Current transactions holding locks : "
                                     + conflicts.toString());
-                    this.waitingList.add(request);
+                    this.waitFor(request);
                 } else {
                     System.out.println("[" + request.transaction
                             + "] is aborted because it is conflict with ["
                             + tempS + "]");
-                    this.abortRequest(new Request(null, request.transaction,
-                            RequestType.ABORT, null));
+                    this.die(request, tempS);
                 }
                 return false;
             }
 
             // coming here means no conflict
-            System.out.println(site.exeRequest(request));
+            String value;
+            try {
+                value = site.exeRequest(request);
+            } catch (SiteUnreachableException e) {
+                this.lostOn(request, site, e.getMessage());
+                return false;
+            }
+            System.out.println("site [" + site.getSiteNum() + "] == " + value);
 
             // add the current transaction to the visitor of the site
             // [this.visitingTrans.get(site)] is the visitor Set of the site
@@ -519,11 +1429,10 @@ public class ImpTransactionManager implements TransactionManager {
 
             // Presumption : transaction exists, transaction running
             // add the current site to the visited of the transaction
-            // [this.transInfo.get(request.transaction)] is the transaction
-            // Entity of the transaction
             // [].visitedSites is the visited sites Set of the transaction.
-            this.transInfo.get(request.transaction).visitedSites.add(site);
-            return true;
+            tempT.visitedSites.add(site);
+            tempT.values.put(resource, Long.valueOf(value));
+            return this.answerRead(request, tempT, site, value);
         }
 
         // if reaching here it means there is no running sites that holds the
@@ -535,11 +1444,63 @@ public class ImpTransactionManager implements TransactionManager {
                         + "] is abourted because there is no site have avaliable data currently");
         // this.transInfo.get(request.transaction).status = tranStatus.Waiting;
         // this.waitingList.add(request);
-        this.abortRequest(new Request(null, request.transaction,
-                RequestType.ABORT, null));
+        this.abortRequest(request, "no site have avaliable data of ["
+                + resource + "]");
         return false;
     }
 
+    /**
+     * The sites holding the resource, the ones the transaction has visited
+     * first, so its reads go where it already holds locks
+     * 
+     * @param tempT
+     * @param resource
+     * @return the sites in the order to try
+     */
+    private List<Site> readOrder(transactionEntity tempT, String resource) {
+        List<Site> sites = this.sitesAvaliable.get(resource);
+        if (tempT.visitedSites.isEmpty())
+            return sites;
+        List<Site> result = new ArrayList<Site>(sites.size());
+        for (Site site : sites)
+            if (tempT.visitedSites.contains(site))
+                result.add(site);
+        for (Site site : sites)
+            if (!tempT.visitedSites.contains(site))
+                result.add(site);
+        return result;
+    }
+
+    /**
+     * Answer a read with its value, read from the site or known by the
+     * transaction. A replayed read must see what the client saw, the
+     * transaction is aborted otherwise.
+     * 
+     * @param request
+     * @param tempT
+     *            the transaction of the request
+     * @param site
+     *            the site read, null if the value was known
+     * @param value
+     * @return true if the read is answered
+     */
+    private boolean answerRead(Request request, transactionEntity tempT,
+            Site site, String value) {
+        if (this.replaying.contains(request) && !value.equals(request.value)) {
+            System.out.println("[" + request.transaction
+                    + "] is aborted because it reads another value of ["
+                    + request.resource + "] after its restart");
+            this.abortRequest(request, "read another value of ["
+                    + request.resource + "] after restart");
+            return false;
+        }
+        if (this.restartLimit > 0)
+            tempT.log.add(new Request(request.resource, request.transaction,
+                    RequestType.READ, value));
+        this.respond(request, ResponseType.VALUE, value);
+        return true;
+    }
+
     /**
      * Handle normal transaction read. Return true if handle success<br>
      * 
@@ -564,7 +1525,7 @@ public class ImpTransactionManager implements TransactionManager {
         for (Site site : sitesAvaliable.get(resource)) {
 
             // Check the site is running.
-            if (!site.isRunning())
+            if (!this.isRunning(site))
                 continue;
 
             // Check if the site is recovering the resource.
@@ -573,7 +1534,14 @@ public class ImpTransactionManager implements TransactionManager {
                 continue;
 
             // Check if there is conflict
-            Set<String> conflicts = site.checkConflict(request);
+            Set<String> conflicts;
+            try {
+                conflicts = site.checkConflict(request);
+            } catch (SiteUnreachableException e) {
+                if (!this.unreachable(request, site, e.getMessage()))
+                    return false;
+                continue;
+            }
             allConflicts.addAll(conflicts);
             if (conflicts.size() > 0) {
                 String tempS = needAbort(request.transaction, conflicts);
@@ -594,15 +1562,14 @@ public class ImpTransactionManager implements TransactionManager {
                 System.out.println("[" + request.transaction
                         + "] is aborted because it is conflict with [" + older
                         + "]");
-                this.abortRequest(new Request(null, request.transaction,
-                        RequestType.ABORT, null));
+                this.die(request, older);
             } else {
                 System.out
                         .println("["
                                 + request.transaction
                                 + "] is going into the wail list. Current transactions holding locks : "
                                 + allConflicts.toString());
-                this.waitingList.add(request);
+                this.waitFor(request);
             }
             return false;
         }
@@ -610,10 +1577,15 @@ public class ImpTransactionManager implements TransactionManager {
         // reaching here means no conflict.
         boolean successfullWiteToOneSite = false;
         for (Site site : sitesAvaliable.get(resource)) {
-            if (!site.isRunning())
+            if (!this.isRunning(site))
                 continue;
 
-            site.exeRequest(request);
+            try {
+                site.exeRequest(request);
+            } catch (SiteUnreachableException e) {
+                this.lostOn(request, site, e.getMessage());
+                return false;
+            }
 
             // add the current transaction to the visitor of the site
             // [this.visitingTrans.get(site)] is the visitor Set of the site
@@ -633,7 +1605,14 @@ public class ImpTransactionManager implements TransactionManager {
                     .println("["
                             + request.transaction
                             + "] is going into the wail list because there is no site have avaliable data currently");
-            this.waitingList.add(request);
+            this.waitFor(request);
+        } else {
+            transactionEntity tempT = this.transInfo.get(request.transaction);
+            tempT.values.put(resource, request.longValue());
+            tempT.written.add(resource);
+            if (this.restartLimit > 0)
+                tempT.log.add(request);
+            this.respond(request, ResponseType.ACK, null);
         }
 
         return successfullWiteToOneSite;
@@ -650,28 +1629,124 @@ public class ImpTransactionManager implements TransactionManager {
 
         // Check if the site exists
         if (tempSite == null) {
-            System.out.println("error: site [" + request.site
+            this.error(request, "error: site [" + request.site
                     + "] does not exists");
             return false;
         }
 
         // Check if the site is running
-        if (!tempSite.isRunning()) {
-            System.out.println("warning : site [" + tempSite
+        if (!this.isRunning(tempSite)) {
+            this.error(request, "warning : site [" + tempSite
                     + "] is already fail");
             return false;
         }
 
+        this.siteDown(tempSite, true, "site [" + request.site + "] failed");
+        this.detectedDown.remove(tempSite);
+        this.respond(request, ResponseType.ACK, null);
+        return true;
+    }
+
+    /**
+     * Fail the site, and abort the transactions that have visited it
+     * 
+     * @param site
+     * @param fail
+     *            false if the site is known to be failed already
+     * @param reason
+     *            the abort reason
+     */
+    private void siteDown(Site site, boolean fail, String reason) {
         // fail the site
-        tempSite.fail();
+        if (fail)
+            site.fail();
+        this.running.put(site, false);
 
         // abort the transactions that have visited the site.
-        for (String transaction : this.visitingTrans.get(tempSite)) {
-            // in site the visitingTrans ensures the existence and running
+        // abortRequest changes the visiting set, so iterate a copy
+        for (String transaction : new LinkedList<String>(
+                this.visitingTrans.get(site))) {
+            // an abort may have lost another site, and aborted some of them
+            if (this.transInfo.get(transaction).status != tranStatus.Running)
+                continue;
             this.abortRequest(new Request(null, transaction, RequestType.ABORT,
-                    null));
+                    null), reason);
+        }
+        this.visitingTrans.get(site).clear();
+    }
+
+    /**
+     * A site did not answer, or is down while this transaction manager takes
+     * it as running. It is failed as if found down by the failure detector,
+     * which recovers it when it answers again: the transactions that visited
+     * it are aborted. A remote site fails itself when it is reached again.
+     * 
+     * @param site
+     * @param message
+     *            why the site is taken as unreachable
+     */
+    private void siteUnreachable(Site site, String message) {
+        if (!this.isRunning(site))
+            return;
+        System.out.println(message + ", failing it");
+        this.siteDown(site, false, "site [" + site.getSiteNum()
+                + "] can not be reached");
+        this.detectedDown.add(site);
+    }
+
+    /**
+     * A site did not answer a request before executing it. The site is
+     * failed, and the request can go on with the other sites if its
+     * transaction had not visited that one. Otherwise the transaction is
+     * aborted, and so is the request.
+     * 
+     * @param request
+     * @param site
+     * @param message
+     * @return true if the transaction of the request is still running
+     */
+    private boolean unreachable(Request request, Site site, String message) {
+        this.siteUnreachable(site, message);
+        transactionEntity tempT = this.transInfo.get(request.transaction);
+        if (tempT.status == tranStatus.Running)
+            return true;
+        this.respond(request, ResponseType.ABORTED, "site ["
+                + site.getSiteNum() + "] can not be reached");
+        return false;
+    }
+
+    /**
+     * A site did not answer a request that may have been executed on it. The
+     * site is failed and the transaction of the request is aborted, as any
+     * transaction visiting a failed site.
+     * 
+     * @param request
+     * @param site
+     * @param message
+     */
+    private void lostOn(Request request, Site site, String message) {
+        if (this.unreachable(request, site, message)) {
+            System.out.println("[" + request.transaction
+                    + "] is aborted because site [" + site.getSiteNum()
+                    + "] can not be reached");
+            this.abortRequest(request, "site [" + site.getSiteNum()
+                    + "] can not be reached");
         }
-        return true;
+    }
+
+    /**
+     * Recover the site
+     * 
+     * @param site
+     */
+    private void siteUp(Site site) {
+        site.recover();
+        this.running.put(site, true);
+        this.upSince.put(site, TimeStamp.getit());
+        this.detectedDown.remove(site);
+        // what the detector saw before is out of date
+        if (this.detector != null)
+            this.detector.reset(site, siteStatus.Up);
     }
 
     /**
@@ -685,7 +1760,7 @@ public class ImpTransactionManager implements TransactionManager {
         // check if the resource request exists.
         if (request.resource != null)
             if (!this.resources.contains(request.resource)) {
-                System.out.println("error: Dump request resource ["
+                this.error(request, "error: Dump request resource ["
                         + request.resource + "] does not exists");
                 return false;
             }
@@ -693,31 +1768,30 @@ public class ImpTransactionManager implements TransactionManager {
         // check if the site request exists.
         if (request.site != null)
             if (!this.siteMap.containsKey(request.site)) {
-                System.out.println("error: Dump request site [" + request.site
+                this.error(request, "error: Dump request site [" + request.site
                         + "] does not exists");
                 return false;
             }
 
-        // Dump all sites
-        if (request.site == null) {
-            for (Site site : sites) {
-                // Check if the site is running
-                if (site.isRunning())
-                    System.out.println(site.exeRequest(request));
-                else
-                    System.out.println("Site [" + site.getSiteNum()
-                            + "] == Fail");
-            }
-            return true;
+        // Dump all sites, or the requested one
+        Collection<Site> dumping = request.site == null ? sites
+                : Collections.singleton(this.siteMap.get(request.site));
+        StringBuffer dump = new StringBuffer();
+        for (Site site : dumping) {
+            String line;
+            // Check if the site is running
+            line = "Site [" + site.getSiteNum() + "] == Fail";
+            if (this.isRunning(site))
+                try {
+                    line = site.exeRequest(request);
+                } catch (SiteUnreachableException e) {
+                    this.siteUnreachable(site, e.getMessage());
+                }
+            System.out.println(line);
+            dump.append(line);
+            dump.append('\n');
         }
-
-        // Dump one site
-        Site site = this.siteMap.get(request.site);
-        // Check if the site is running
-        if (site.isRunning())
-            System.out.println(site.exeRequest(request));
-        else
-            System.out.println("Site [" + site.getSiteNum() + "] == Fail");
+        this.respond(request, ResponseType.ACK, dump.toString());
         return true;
     }
 
@@ -730,27 +1804,190 @@ public class ImpTransactionManager implements TransactionManager {
     private boolean recoverRequest(Request request) {
 
         if (request.site == null) {
-            System.out.println("error: recovery request have no site");
+            this.error(request, "error: recovery request have no site");
             return false;
         }
 
         if (request.site != null)
             if (!this.siteMap.containsKey(request.site)) {
-                System.out.println("error: recovery request site ["
+                this.error(request, "error: recovery request site ["
                         + request.site + "] does not exists");
                 return false;
             }
 
-        if (this.siteMap.get(request.site).isRunning()) {
-            System.out.println("error: recovery request site [" + request.site
+        if (this.isRunning(this.siteMap.get(request.site))) {
+            this.error(request, "error: recovery request site [" + request.site
                     + "] is running");
             return false;
         }
 
-        this.siteMap.get(request.site).recover();
+        this.siteUp(this.siteMap.get(request.site));
+        this.respond(request, ResponseType.ACK, null);
+        return true;
+    }
+
+    /**
+     * handle migrate request, move the copy of request.resource from
+     * request.site to the site named by request.value. return true if the
+     * request is success <br>
+     * <br>
+     * The migration goes to the waiting list while some transaction holds a
+     * lock on the copy to be moved, or some running read only transaction
+     * began before the resource was last written. Otherwise the committed
+     * value is copied to the target under a handoff lock, sitesAvaliable is
+     * switched to a new list, and the old copy is dropped. No transaction is
+     * stopped.
+     * 
+     * @param request
+     * @return true if the request is success
+     */
+    private boolean migrateRequest(Request request) {
+        String resource = request.resource;
+        Site source = this.siteMap.get(request.site);
+        Site target = this.siteMap.get(request.value);
+
+        if (!this.requestResourceExists(request))
+            return false;
+
+        if (source == null || target == null) {
+            this.error(request, "error: migrate request site ["
+                    + (source == null ? request.site : request.value)
+                    + "] does not exists");
+            return false;
+        }
+
+        List<Site> holders = this.sitesAvaliable.get(resource);
+        if (!holders.contains(source) || holders.contains(target)) {
+            this.error(request, "error: migrate request [" + resource
+                    + "] must be on site [" + request.site
+                    + "] and not on site [" + request.value + "]");
+            return false;
+        }
+
+        if (!this.isRunning(source) || !this.isRunning(target)) {
+            this.error(request, "error: migrate request sites ["
+                    + request.site + "] and [" + request.value
+                    + "] must be running");
+            return false;
+        }
+
+        if (source.isRecovering(resource)) {
+            this.error(request, "error: migrate request [" + resource
+                    + "] on site [" + request.site + "] is not up to date");
+            return false;
+        }
+
+        // Wait for the lock holders of the old copy, and for the scans of
+        // the target that the new copy would enter
+        Set<String> holding;
+        Site asked = source;
+        try {
+            holding = source.checkConflict(new Request(resource, null,
+                    RequestType.WRITE, null));
+            asked = target;
+            if (holding != null && holding.isEmpty())
+                holding = target.checkConflict(new Request(resource, null,
+                        RequestType.WRITE, null));
+        } catch (SiteUnreachableException e) {
+            this.siteUnreachable(asked, e.getMessage());
+            this.error(request, "error: migrate request site ["
+                    + asked.getSiteNum() + "] can not be reached");
+            return false;
+        }
+        if (holding == null || holding.size() > 0) {
+            System.out.println("migration of [" + resource
+                    + "] is going into the wail list. Current transactions holding locks : "
+                    + holding);
+            this.waitFor(request);
+            return false;
+        }
+
+        // Wait for the read only transactions begun before the last write.
+        // They read the resource as of their begin time stamp, an older
+        // version the target does not have. The ones begun after read the
+        // committed value, the one copied.
+        Integer written = this.lastWritten.get(resource);
+        if (written != null && !this.readOnlyBegins.isEmpty()
+                && this.readOnlyBegins.first() < written) {
+            System.out.println("migration of [" + resource
+                    + "] is going into the wail list. Waiting for read only transactions");
+            this.waitFor(request);
+            return false;
+        }
+
+        // stream the committed value, the target keeps the handoff lock.
+        // Nothing is switched until the target has the copy
+        long value;
+        try {
+            value = source.exportResource(resource);
+        } catch (SiteUnreachableException e) {
+            this.siteUnreachable(source, e.getMessage());
+            this.error(request, "error: migrate request site ["
+                    + request.site + "] can not be reached");
+            return false;
+        } catch (RuntimeException e) {
+            this.error(request, "error: migrate request [" + resource
+                    + "] can not be read on site [" + request.site + "]: "
+                    + e.getMessage());
+            return false;
+        }
+        try {
+            target.importResource(resource, value, holders.size() == 1);
+        } catch (SiteUnreachableException e) {
+            // a failed site loses its handoff locks
+            this.siteUnreachable(target, e.getMessage());
+            this.error(request, "error: migrate request site ["
+                    + request.value + "] can not be reached");
+            return false;
+        } catch (RuntimeException e) {
+            this.abandonImport(target, resource);
+            this.error(request, "error: migrate request [" + resource
+                    + "] can not be installed on site [" + request.value
+                    + "]: " + e.getMessage());
+            return false;
+        }
+
+        // switch to the new holder list in one step
+        List<Site> temp = new LinkedList<Site>(holders);
+        temp.set(temp.indexOf(source), target);
+        this.sitesAvaliable.put(resource, temp);
+
+        try {
+            target.finishImport(resource);
+        } catch (SiteUnreachableException e) {
+            // the copy is there, the failed site recovers it as any other
+            this.siteUnreachable(target, e.getMessage());
+        }
+        try {
+            source.dropResource(resource);
+        } catch (SiteUnreachableException e) {
+            // the old copy is not used anymore
+            this.siteUnreachable(source, e.getMessage());
+        }
+        System.out.println("[" + resource + "] have been migrated from site ["
+                + request.site + "] to site [" + request.value + "]");
+        this.respond(request, ResponseType.ACK, null);
         return true;
     }
 
+    /**
+     * Remove what a failed import has left on the target, its handoff lock
+     * and the copy if it was installed
+     * 
+     * @param target
+     * @param resource
+     */
+    private void abandonImport(Site target, String resource) {
+        try {
+            target.dropResource(resource);
+        } catch (SiteUnreachableException e) {
+            this.siteUnreachable(target, e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("error: trancmng.ImpTransactionManager.abandonImport\n  "
+                    + e);
+        }
+    }
+
     /**
      * handle begin request. return true if the request is success
      * 
@@ -761,28 +1998,41 @@ public class ImpTransactionManager implements TransactionManager {
 
         // Check if the transaction name is used before
         if (this.transInfo.containsKey(request.transaction)) {
-            System.out.println("error : transaction [" + request.transaction
+            this.error(request, "error : transaction [" + request.transaction
                     + "] already exists");
             return false;
         }
 
+        // The priority of a read write transaction is the value of the begin,
+        // clamped to transactionEntity.MAX_PRIORITY
+        int priority = 0;
+        if (request.requestType == RequestType.BEGIN && request.value != null) {
+            try {
+                priority = Integer.parseInt(request.value);
+            } catch (NumberFormatException e) {
+                this.error(request, "error : priority [" + request.value
+                        + "] of transaction [" + request.transaction
+                        + "] is not an integer");
+                return false;
+            }
+        }
+
         // Create new transaction Entity
         // Including final time stamp
         transactionEntity tempT = new transactionEntity(request.transaction,
-                request.requestType == RequestType.BEGINRO);
+                request.requestType == RequestType.BEGINRO, priority);
         this.transInfo.put(tempT.name, tempT);
-
-        // if the transaction is read only, create snapshot on all running sites
-        if (request.requestType == RequestType.BEGINRO) {
-            for (Site site : sites) {
-                if (!site.isRunning())
-                    continue;
-
-                site.exeRequest(new Request(null, tempT.name,
-                        RequestType.SNAPSHOT, null));
-                tempT.visitedSites.add(site);
-            }
-        }
+        if (tempT.priority != priority)
+            System.out.println("priority of transaction [" + tempT.name
+                    + "] is limited to " + tempT.priority);
+
+        // if the transaction is read only, only keep its time stamp.
+        // The sites resolve the snapshot when it first reads on them
+        if (request.requestType == RequestType.BEGINRO)
+            this.readOnlyBegins.add(tempT.timestamp);
+        else
+            this.active++;
+        this.respond(request, ResponseType.ACK, null);
         return true;
     }
 
@@ -795,32 +2045,155 @@ public class ImpTransactionManager implements TransactionManager {
      * @return true if the request is success
      */
     private boolean abortRequest(Request request) {
+        return this.abortRequest(request, "aborted by request");
+    }
+
+    /**
+     * Abort the transaction of the request. The request and the requests of
+     * the transaction in the waiting list get an ABORTED response with the
+     * reason. <br>
+     * 
+     * Presumption : transaction exists, transaction running
+     * 
+     * @param request
+     *            the request causing the abort, of any type
+     * @param reason
+     *            why the transaction is aborted
+     * @return true if the request is success
+     */
+    private boolean abortRequest(Request request, String reason) {
 
         // Presumption : transaction exists
         transactionEntity tempT = this.transInfo.get(request.transaction);
+        List<Request> removing = this.rollback(tempT, request);
+        this.calls.remove(tempT.name);
+        System.out
+                .println("transaction [" + tempT.name + "] have been aborted");
+        this.respond(request, ResponseType.ABORTED, reason);
+        for (Request wait : removing)
+            this.respond(wait, ResponseType.ABORTED, reason);
+        return true;
+    }
+
+    /**
+     * Undo the transaction on the sites and mark it aborted. <br>
+     * 
+     * Presumption : transaction running
+     * 
+     * @param tempT
+     *            the transaction
+     * @param request
+     *            the request causing the abort, of any type
+     * @return the requests of the transaction taken out of the waiting list,
+     *         in the order they came
+     */
+    private List<Request> rollback(transactionEntity tempT, Request request) {
 
         // remove all transaction requests in the waiting list.
-        Set<Request> removing = new HashSet<Request>();
-        for (Request wait : this.waitingList) {
-            if (wait.transaction.equals(request.transaction))
-                removing.add(wait);
-        }
-        this.waitingList.removeAll(removing);
+        List<Request> removing = this.waitingList.remove(tempT.name);
+        for (Request wait : removing)
+            this.doneWaiting(wait);
 
         // clear site visiting record
         // clear site lock and buffer data
+        Request abort = request.requestType == RequestType.ABORT ? request
+                : new Request(null, request.transaction, RequestType.ABORT,
+                        null);
+        List<Site> lost = new LinkedList<Site>();
         for (Site site : tempT.visitedSites) {
-            if (!site.isRunning())
+            if (!this.isRunning(site))
                 continue;
-            site.exeRequest(request);
             this.visitingTrans.get(site).remove(tempT.name);
+            try {
+                site.exeRequest(abort);
+            } catch (SiteUnreachableException e) {
+                lost.add(site);
+            }
         }
 
         tempT.status = tranStatus.Aborted;
         tempT.visitedSites = Collections.unmodifiableSet(tempT.visitedSites);
-        System.out
-                .println("transaction [" + tempT.name + "] have been aborted");
-        return true;
+        if (tempT.isReadOnly())
+            this.readOnlyBegins.remove(tempT.timestamp);
+        else
+            this.finished(true);
+
+        // a site the abort did not reach is failed, it forgets the
+        // transaction anyway
+        for (Site site : lost)
+            this.siteUnreachable(site, "site [" + site.getSiteNum()
+                    + "] missed the abort of [" + tempT.name + "]");
+        return removing;
+    }
+
+    /**
+     * Abort the transaction of the request, killed by wait-die. With
+     * automatic restart, it waits for its restart instead: the request, the
+     * requests of the transaction in the waiting list, and the ones coming
+     * until the restart are handled after its log is replayed. They get no
+     * ABORTED response.
+     * 
+     * @param request
+     *            the request causing the abort
+     * @param older
+     *            the older transaction it conflicts with
+     */
+    private void die(Request request, String older) {
+        transactionEntity tempT = this.transInfo.get(request.transaction);
+        if (tempT.restarts >= this.restartLimit) {
+            this.abortRequest(request, "conflict with [" + older + "]");
+            return;
+        }
+
+        Queue<Request> replay = new LinkedList<Request>(tempT.log);
+        this.replaying.addAll(tempT.log);
+        replay.addAll(this.rollback(tempT, request));
+        replay.add(request);
+        tempT.backoff = 1 << Math.min(tempT.restarts, MAX_BACKOFF);
+        this.restarting.put(tempT.name, replay);
+        System.out.println("transaction [" + tempT.name
+                + "] have been aborted, restarting in " + tempT.backoff
+                + " rounds");
+    }
+
+    /**
+     * Count down the backoff of the transactions waiting for their restart.
+     * The ones that are due begin again with their time stamp, and replay
+     * their requests. <br>
+     * A restart goes through the admission control as a begin, before the
+     * held transactions as it began before them. It is never refused: its
+     * client was not told it aborted, so a due transaction the load does
+     * not allow keeps waiting for its restart until the next round.
+     */
+    private void restartDue() {
+        List<String> due = new LinkedList<String>();
+        for (String transaction : this.restarting.keySet())
+            if (--this.transInfo.get(transaction).backoff <= 0)
+                due.add(transaction);
+
+        for (String transaction : due) {
+            String reason = this.admission == null ? null : this.admission
+                    .refuse(this.active, this.waitingList.size());
+            if (reason != null) {
+                System.out.println("restart of [" + transaction
+                        + "] is delayed because " + reason);
+                continue;
+            }
+            Queue<Request> replay = this.restarting.remove(transaction);
+            transactionEntity tempT = new transactionEntity(
+                    this.transInfo.get(transaction));
+            this.transInfo.put(transaction, tempT);
+            this.active++;
+            this.restarts++;
+            System.out.println("transaction [" + transaction
+                    + "] is restarted (" + tempT.restarts + ")");
+            // if it dies again, the rest goes back to its restart
+            Request request;
+            while ((request = replay.poll()) != null) {
+                System.out.println(">>trying rquest : [" + request + "]");
+                this.handleRequest(request);
+            }
+        }
     }
 
     /**
@@ -835,23 +2208,681 @@ public class ImpTransactionManager implements TransactionManager {
             return false;
 
         transactionEntity tempT = this.transInfo.get(request.transaction);
+        Set<String> unsure = this.commit(tempT, request);
+        if (unsure == null)
+            return false;
+        if (!unsure.isEmpty())
+            return true;
+        System.out
+        .println("transaction [" + tempT.name + "] have success comitted");
+        this.respond(request, ResponseType.COMMITTED, null);
+        return true;
+    }
 
-        for (Site site : tempT.visitedSites) {
-            if (!site.isRunning())
+    /**
+     * Commit the transaction on the sites it visited, see
+     * {@link #commitAll(List, List)}
+     * 
+     * @param tempT
+     *            the running transaction
+     * @param request
+     *            the request ending the transaction, answered if it is
+     *            aborted or its outcome is unknown
+     * @return the written resources whose commit is unknown, empty if the
+     *         request is to be answered COMMITTED, null if the transaction
+     *         is aborted
+     */
+    private Set<String> commit(transactionEntity tempT, Request request) {
+        return this.commitAll(Collections.singletonList(tempT),
+                Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Commit transactions on the sites they visited, in the given order. A
+     * site gets the COMMIT requests of all the transactions that visited it
+     * in one call. <br>
+     * <br>
+     * The status of the sites is refreshed from the failure detector first,
+     * without asking the sites. A visited site found down since the beginning
+     * of the round has lost the uncommitted data of the transaction: it is
+     * failed, which aborts the transaction, and the request is answered
+     * ABORTED. <br>
+     * The first site applying the commit of a transaction is its commit
+     * point. If the COMMIT never reached it, no site has applied the commit,
+     * the site is failed and the transaction is aborted as well. Once a
+     * COMMIT has been sent, the transaction is committed: a site lost after,
+     * or one that got the COMMIT and did not answer, is failed as a site
+     * failing right after the commit, and the transaction is committed on
+     * the others. A lost site recovers its replicated resources from the
+     * other copies, but the resources written by the transaction that only
+     * it holds may or may not have the commit. The request is then answered
+     * UNKNOWN with them.
+     * 
+     * @param batch
+     *            running transactions, no two of them conflicting
+     * @param requests
+     *            the request ending each transaction, answered if it is
+     *            aborted or its outcome is unknown
+     * @return for each transaction, the written resources whose commit is
+     *         unknown, empty if the request is to be answered COMMITTED, null
+     *         if the transaction is aborted
+     */
+    private List<Set<String>> commitAll(List<transactionEntity> batch,
+            List<Request> requests) {
+        List<Set<String>> outcome = new ArrayList<Set<String>>();
+        boolean writing = false;
+        for (transactionEntity tempT : batch)
+            if (tempT.isReadOnly())
+                this.readOnlyBegins.remove(tempT.timestamp);
+            else
+                writing = true;
+        if (writing)
+            this.checkSites();
+
+        // the commit time stamps, and the oldest reader the sites keep
+        // versions for
+        Map<String, Integer> commitTime = new HashMap<String, Integer>();
+        int watermark = this.readOnlyBegins.isEmpty() ? Integer.MAX_VALUE
+                : this.readOnlyBegins.first();
+        Map<Site, List<transactionEntity>> visitors = new LinkedHashMap<Site, List<transactionEntity>>();
+        for (int i = 0; i < batch.size(); i++) {
+            transactionEntity tempT = batch.get(i);
+            if (tempT.status != tranStatus.Running) {
+                System.out.println("[" + tempT.name
+                        + "] is aborted because a site it visited is down");
+                this.respond(requests.get(i), ResponseType.ABORTED,
+                        "a site visited by [" + tempT.name
+                                + "] is down at its commit");
+                outcome.add(null);
                 continue;
-            
+            }
+            outcome.add(new TreeSet<String>(ResourceOrder.INSTANCE));
+            commitTime.put(tempT.name, TimeStamp.getit());
+            for (Site site : tempT.visitedSites) {
+                if (!visitors.containsKey(site))
+                    visitors.put(site, new ArrayList<transactionEntity>());
+                visitors.get(site).add(tempT);
+            }
+        }
+
+        // a transaction can not be aborted any more once a COMMIT of it may
+        // have been applied
+        Set<String> sent = new HashSet<String>();
+        Map<String, List<Site>> lost = new HashMap<String, List<Site>>();
+        // transactions whose commit point could not be reached, and why
+        Map<String, Site> aborting = new HashMap<String, Site>();
+        Map<Site, String> failures = new HashMap<Site, String>();
+        for (Map.Entry<Site, List<transactionEntity>> entry : visitors
+                .entrySet()) {
+            Site site = entry.getKey();
+            if (!this.isRunning(site))
+                continue;
+            List<transactionEntity> group = new ArrayList<transactionEntity>();
+            List<Request> commits = new ArrayList<Request>();
+            for (transactionEntity tempT : entry.getValue()) {
+                if (aborting.containsKey(tempT.name))
+                    continue;
+                group.add(tempT);
+                commits.add(new Request(tempT.name, RequestType.COMMIT,
+                        commitTime.get(tempT.name), watermark));
+            }
+            if (group.isEmpty())
+                continue;
+
             //Commit to each visited running site
-            site.exeRequest(new Request(null, request.transaction,
-                    RequestType.COMMIT, null));
-            
+            try {
+                if (commits.size() == 1)
+                    site.exeRequest(commits.get(0));
+                else
+                    site.commitAll(commits);
+            } catch (SiteUnreachableException e) {
+                failures.put(site, e.getMessage());
+                for (transactionEntity tempT : group) {
+                    if (!sent.contains(tempT.name) && !e.isInDoubt()
+                            && !tempT.isReadOnly()) {
+                        aborting.put(tempT.name, site);
+                        continue;
+                    }
+                    if (!lost.containsKey(tempT.name))
+                        lost.put(tempT.name, new LinkedList<Site>());
+                    lost.get(tempT.name).add(site);
+                }
+            }
+
             //remove from visiting transaction set of the site
-            this.visitingTrans.get(site).remove(tempT.name);
+            for (transactionEntity tempT : group) {
+                if (aborting.containsKey(tempT.name))
+                    continue;
+                sent.add(tempT.name);
+                this.visitingTrans.get(site).remove(tempT.name);
+            }
         }
 
-        tempT.status = tranStatus.Commited;
-        tempT.visitedSites = Collections.unmodifiableSet(tempT.visitedSites);
-        System.out
-        .println("transaction [" + tempT.name + "] have success comitted");
+        for (int i = 0; i < batch.size(); i++) {
+            transactionEntity tempT = batch.get(i);
+            if (outcome.get(i) == null || aborting.containsKey(tempT.name))
+                continue;
+            tempT.status = tranStatus.Commited;
+            if (!tempT.isReadOnly()) {
+                this.finished(false);
+                if (this.readCache != null)
+                    this.readCache.committed(commitTime.get(tempT.name),
+                            watermark);
+                for (String resource : tempT.written)
+                    this.lastWritten.put(resource, commitTime.get(tempT.name));
+            }
+            tempT.visitedSites = Collections
+                    .unmodifiableSet(tempT.visitedSites);
+        }
+
+        // failing the site aborts the transactions visiting it
+        for (int i = 0; i < batch.size(); i++) {
+            transactionEntity tempT = batch.get(i);
+            Site site = aborting.get(tempT.name);
+            if (site == null)
+                continue;
+            System.out.println("[" + tempT.name
+                    + "] is aborted because site [" + site.getSiteNum()
+                    + "] can not be reached");
+            this.unreachable(requests.get(i), site, failures.get(site));
+            outcome.set(i, null);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            transactionEntity tempT = batch.get(i);
+            if (outcome.get(i) == null || !lost.containsKey(tempT.name))
+                continue;
+            for (Site site : lost.get(tempT.name))
+                this.siteUnreachable(site, "site [" + site.getSiteNum()
+                        + "] may have missed the commit of [" + tempT.name
+                        + "]");
+            Set<String> unsure = this.onlyOn(tempT, lost.get(tempT.name));
+            if (unsure.isEmpty())
+                continue;
+            System.out.println("transaction [" + tempT.name
+                    + "] have comitted, outcome unknown on " + unsure);
+            this.respond(requests.get(i), ResponseType.UNKNOWN, "commit of "
+                    + unsure
+                    + " unknown, the sites holding them can not be reached");
+            outcome.set(i, unsure);
+        }
+        return outcome;
+    }
+
+    /**
+     * The resources written by a transaction whose copies are all on the
+     * given sites
+     * 
+     * @param tempT
+     * @param lost
+     *            sites that may not have applied the commit
+     * @return the resources, in order
+     */
+    private Set<String> onlyOn(transactionEntity tempT, List<Site> lost) {
+        Set<String> result = new TreeSet<String>(ResourceOrder.INSTANCE);
+        if (lost.isEmpty())
+            return result;
+        for (String resource : tempT.written) {
+            boolean elsewhere = false;
+            for (Site site : this.sitesAvaliable.get(resource))
+                if (!lost.contains(site)
+                        && tempT.visitedSites.contains(site))
+                    elsewhere = true;
+            if (!elsewhere)
+                result.add(resource);
+        }
+        return result;
+    }
+
+    /**
+     * handle define request, register the procedure, replacing the one of the
+     * same name. return true if the request is success
+     * 
+     * @param request
+     * @return true if the request is success
+     */
+    private boolean defineRequest(Request request) {
+        Procedure procedure;
+        try {
+            procedure = new Procedure(request.resource, request.value);
+        } catch (IllegalArgumentException e) {
+            this.error(request, "error: " + e.getMessage());
+            return false;
+        }
+        this.procedures.put(procedure.name, procedure);
+        System.out.println("procedure [" + procedure.name + "] is defined");
+        this.respond(request, ResponseType.ACK, null);
+        return true;
+    }
+
+    /**
+     * handle call request, run a procedure as one transaction. return true if
+     * the call has committed <br>
+     * <br>
+     * The locks of all its resources are checked first, on the sites and
+     * against the waiting list. If none conflicts, it reads, writes and
+     * commits at once, so it holds its locks for no time between requests.
+     * Otherwise wait die applies to the whole call, which waits holding no
+     * lock and is tried again from the start.
+     * 
+     * @param request
+     * @return true if the call has committed
+     */
+    private boolean callRequest(Request request) {
+        String transaction = request.transaction;
+        Procedure.Call call = this.calls.get(transaction);
+
+        // first try, begin the transaction of the call
+        if (call == null || call.request != request) {
+            if (this.transInfo.containsKey(transaction)) {
+                this.error(request, "error : transaction [" + transaction
+                        + "] already exists");
+                return false;
+            }
+            call = this.bindCall(request);
+            if (call == null)
+                return false;
+            this.transInfo.put(transaction, new transactionEntity(transaction,
+                    false));
+            this.active++;
+            this.calls.put(transaction, call);
+        }
+        transactionEntity tempT = this.transInfo.get(transaction);
+
+        // check every lock before taking any
+        Map<String, Site> readFrom = new HashMap<String, Site>();
+        Set<String> conflicts = this.lockConflicts(call, readFrom);
+        if (conflicts == null) {
+            System.out
+                    .println("["
+                            + transaction
+                            + "] is going into the wail list because there is no site have avaliable data currently");
+            this.waitFor(request);
+            return false;
+        }
+        for (Request waitingRequest : this.waitingList)
+            if (waitingRequest.transaction != null
+                    && !transaction.equals(waitingRequest.transaction)
+                    && overlap(call, waitingRequest))
+                conflicts.add(waitingRequest.transaction);
+
+        if (conflicts.size() > 0) {
+            System.out
+                    .print("warning: There is conflict with current lockers. ");
+            String older = this.needAbort(transaction, conflicts);
+            if (older != null) {
+                System.out.println("[" + transaction
+                        + "] is aborted because it is conflict with [" + older
+                        + "]");
+                this.die(request, older);
+            } else {
+                System.out
+                        .println("["
+                                + transaction
+                                + "] is going into the wail list. Conflicting transactions : "
+                                + conflicts.toString());
+                this.waitFor(request);
+            }
+            return false;
+        }
+
+        // no conflict, run it at once
+        return this.runCall(tempT, call, readFrom);
+    }
+
+    /**
+     * Check if a call conflicts with a read, write or scan request, as each
+     * of its reads and writes would by {@link #overlap(Request, Request)}
+     * 
+     * @param call
+     * @param other
+     * @return true if they conflict
+     */
+    private static boolean overlap(Procedure.Call call, Request other) {
+        if (other.requestType != RequestType.READ
+                && other.requestType != RequestType.WRITE
+                && other.requestType != RequestType.SCAN)
+            return false;
+        String transaction = call.request.transaction;
+        for (String resource : call.writes)
+            if (overlap(new Request(resource, transaction, RequestType.WRITE,
+                    null), other))
+                return true;
+        for (String resource : call.reads)
+            if (overlap(new Request(resource, transaction, RequestType.READ,
+                    null), other))
+                return true;
+        return false;
+    }
+
+    /**
+     * Bind the procedure of a call request to its arguments. Error message
+     * will be print to system.out
+     * 
+     * @param request
+     * @return the call, null if the procedure or a resource does not exist,
+     *         or the arguments do not fit
+     */
+    private Procedure.Call bindCall(Request request) {
+        Procedure procedure = this.procedures.get(request.resource);
+        if (procedure == null) {
+            this.error(request, "error: procedure [" + request.resource
+                    + "] is not defined");
+            return null;
+        }
+        Procedure.Call call;
+        try {
+            call = procedure.bind(request);
+        } catch (IllegalArgumentException e) {
+            this.error(request, "error: " + e.getMessage());
+            return null;
+        }
+        Set<String> all = new HashSet<String>(call.reads);
+        all.addAll(call.writes);
+        for (String resource : all)
+            if (!this.resources.contains(resource)) {
+                this.error(request, "error: no site hold the resources ["
+                        + resource + "]");
+                return null;
+            }
+        return call;
+    }
+
+    /**
+     * Deterministic mode: put a call in the sequence of calls, it runs
+     * after the calls sequenced before it that it conflicts with
+     * 
+     * @param request
+     * @return true if the call is sequenced
+     */
+    private boolean sequenceRequest(Request request) {
+        if (this.transInfo.containsKey(request.transaction)
+                || this.sequenced.containsKey(request.transaction)) {
+            this.error(request, "error : transaction [" + request.transaction
+                    + "] already exists");
+            return false;
+        }
+        Procedure.Call call = this.bindCall(request);
+        if (call == null)
+            return false;
+        this.sequenced.put(request.transaction, call);
+        return true;
+    }
+
+    /**
+     * Run the sequenced calls that can run, in the order of the sequence. A
+     * call runs when it conflicts with no call before it that is still
+     * waiting, and no transaction holds a lock it needs. So the calls take
+     * effect as if run one by one in the order of the sequence, none of them
+     * is aborted, and each one takes and releases its locks at once.
+     * Interactive transactions are not in the sequence, a call waits for
+     * their locks, at most MAX_LOCKED_OUT rounds. A call the admission
+     * control does not allow waits with the calls after it for the next
+     * round. <br>
+     * The calls run in a round are committed together at its end, each site
+     * getting their COMMIT requests in one call. A call conflicting with one
+     * run in the round waits for the next round.
+     */
+    private void runSequenced() {
+        // resources written and read by the calls still waiting, or run in
+        // this round and not committed yet
+        Set<String> writing = new HashSet<String>();
+        Set<String> reading = new HashSet<String>();
+        List<transactionEntity> batch = new ArrayList<transactionEntity>();
+        List<Procedure.Call> ran = new ArrayList<Procedure.Call>();
+        List<String> results = new ArrayList<String>();
+        Iterator<Procedure.Call> it = this.sequenced.values().iterator();
+        while (it.hasNext()) {
+            Procedure.Call call = it.next();
+            boolean blocked = conflict(call, writing, reading);
+            Map<String, Site> readFrom = new HashMap<String, Site>();
+            if (!blocked) {
+                Set<String> conflicts = this.lockConflicts(call, readFrom);
+                if (conflicts != null && conflicts.size() > 0
+                        && this.lockedOut(call)) {
+                    this.abortHolders(call, conflicts);
+                    readFrom.clear();
+                    conflicts = this.lockConflicts(call, readFrom);
+                }
+                blocked = conflicts == null || conflicts.size() > 0;
+            }
+            if (blocked) {
+                writing.addAll(call.writes);
+                reading.addAll(call.reads);
+                continue;
+            }
+            String reason = this.admission == null ? null : this.admission
+                    .refuse(this.active, this.waitingList.size());
+            if (reason != null) {
+                System.out.println("sequenced calls are delayed because "
+                        + reason);
+                break;
+            }
+            it.remove();
+            this.lockedOut.remove(call.request.transaction);
+            System.out.println(">>running call : [" + call.request + "]");
+            transactionEntity tempT = new transactionEntity(
+                    call.request.transaction, false);
+            this.transInfo.put(tempT.name, tempT);
+            this.active++;
+            String result = this.execute(tempT, call, readFrom);
+            if (result == null)
+                continue;
+            writing.addAll(call.writes);
+            reading.addAll(call.reads);
+            batch.add(tempT);
+            ran.add(call);
+            results.add(result);
+        }
+
+        if (batch.isEmpty())
+            return;
+        List<Request> requests = new ArrayList<Request>();
+        for (Procedure.Call call : ran)
+            requests.add(call.request);
+        List<Set<String>> outcome = this.commitAll(batch, requests);
+        for (int i = 0; i < ran.size(); i++)
+            this.answer(ran.get(i), results.get(i), outcome.get(i));
+    }
+
+    /**
+     * @param call
+     * @param writing
+     *            resources written by other calls
+     * @param reading
+     *            resources read by other calls
+     * @return true if the call conflicts with the other calls
+     */
+    private static boolean conflict(Procedure.Call call, Set<String> writing,
+            Set<String> reading) {
+        return !Collections.disjoint(call.writes, writing)
+                || !Collections.disjoint(call.writes, reading)
+                || !Collections.disjoint(call.reads, writing);
+    }
+
+    /**
+     * Count a round a sequenced call waits for the locks of interactive
+     * transactions
+     * 
+     * @param call
+     * @return true if it has waited MAX_LOCKED_OUT rounds
+     */
+    private boolean lockedOut(Procedure.Call call) {
+        String transaction = call.request.transaction;
+        Integer rounds = this.lockedOut.get(transaction);
+        rounds = rounds == null ? 1 : rounds + 1;
+        this.lockedOut.put(transaction, rounds);
+        return rounds >= MAX_LOCKED_OUT;
+    }
+
+    /**
+     * Abort the transactions holding locks a sequenced call has waited for
+     * too long
+     * 
+     * @param call
+     * @param holders
+     */
+    private void abortHolders(Procedure.Call call, Set<String> holders) {
+        for (String transaction : holders) {
+            transactionEntity tempT = this.transInfo.get(transaction);
+            if (tempT == null || tempT.status != tranStatus.Running)
+                continue;
+            System.out.println("[" + transaction
+                    + "] is aborted because sequenced call ["
+                    + call.request.transaction + "] waited " + MAX_LOCKED_OUT
+                    + " rounds for its locks");
+            this.abortRequest(new Request(null, transaction,
+                    RequestType.ABORT, null), "holds locks sequenced call ["
+                    + call.request.transaction + "] waited for");
+        }
+    }
+
+    /**
+     * The transactions holding locks that conflict with a call, on the sites
+     * it would read from and write to
+     * 
+     * @param call
+     * @param readFrom
+     *            receives the site each resource is read from
+     * @return the conflicting transactions, null if some resource has no site
+     *         to read from or write to
+     */
+    private Set<String> lockConflicts(Procedure.Call call,
+            Map<String, Site> readFrom) {
+        String transaction = call.request.transaction;
+        Set<String> conflicts = new HashSet<String>();
+        for (String resource : call.reads) {
+            for (Site site : this.sitesAvaliable.get(resource))
+                if (this.isRunning(site) && !site.isRecovering(resource)) {
+                    readFrom.put(resource, site);
+                    break;
+                }
+            if (!readFrom.containsKey(resource))
+                return null;
+            try {
+                conflicts.addAll(readFrom.get(resource).checkConflict(
+                        new Request(resource, transaction, RequestType.READ,
+                                null)));
+            } catch (SiteUnreachableException e) {
+                // nothing is locked yet, choose the sites again without it
+                this.siteUnreachable(readFrom.get(resource), e.getMessage());
+                readFrom.clear();
+                return this.lockConflicts(call, readFrom);
+            }
+        }
+        for (String resource : call.writes) {
+            boolean running = false;
+            for (Site site : this.sitesAvaliable.get(resource)) {
+                if (!this.isRunning(site))
+                    continue;
+                running = true;
+                if (!site.isRecovering(resource))
+                    try {
+                        conflicts.addAll(site.checkConflict(new Request(
+                                resource, transaction, RequestType.WRITE, null)));
+                    } catch (SiteUnreachableException e) {
+                        this.siteUnreachable(site, e.getMessage());
+                        readFrom.clear();
+                        return this.lockConflicts(call, readFrom);
+                    }
+            }
+            if (!running)
+                return null;
+        }
+        return conflicts;
+    }
+
+    /**
+     * Read, write and commit a call that has no conflict, and answer it. If a
+     * site can not be reached, the call is aborted.
+     * 
+     * @param tempT
+     *            the running transaction of the call
+     * @param call
+     * @param readFrom
+     *            the site each resource is read from
+     * @return true if the call has committed
+     */
+    private boolean runCall(transactionEntity tempT, Procedure.Call call,
+            Map<String, Site> readFrom) {
+        String result = this.execute(tempT, call, readFrom);
+        if (result == null)
+            return false;
+        return this.answer(call, result, this.commit(tempT, call.request));
+    }
+
+    /**
+     * Read and write a call that has no conflict. If a site can not be
+     * reached, the call is aborted.
+     * 
+     * @param tempT
+     *            the running transaction of the call
+     * @param call
+     * @param readFrom
+     *            the site each resource is read from
+     * @return the result of the call, null if it is aborted
+     */
+    private String execute(transactionEntity tempT, Procedure.Call call,
+            Map<String, Site> readFrom) {
+        String transaction = tempT.name;
+        Map<String, Long> values = new HashMap<String, Long>();
+        for (String resource : call.reads) {
+            Site site = readFrom.get(resource);
+            try {
+                values.put(resource, Long.parseLong(site.exeRequest(new Request(
+                        resource, transaction, RequestType.READ, null))));
+            } catch (SiteUnreachableException e) {
+                this.lostOn(call.request, site, e.getMessage());
+                return null;
+            }
+            this.visitingTrans.get(site).add(transaction);
+            tempT.visitedSites.add(site);
+        }
+        List<Request> writing = new LinkedList<Request>();
+        String result = call.run(values, writing);
+        for (Request write : writing) {
+            tempT.written.add(write.resource);
+            for (Site site : this.sitesAvaliable.get(write.resource)) {
+                if (!this.isRunning(site))
+                    continue;
+                try {
+                    site.exeRequest(write);
+                } catch (SiteUnreachableException e) {
+                    this.lostOn(call.request, site, e.getMessage());
+                    return null;
+                }
+                this.visitingTrans.get(site).add(transaction);
+                tempT.visitedSites.add(site);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Answer a call after its commit
+     * 
+     * @param call
+     * @param result
+     *            the result of the call
+     * @param unsure
+     *            the outcome of its commit, see {@link #commit}
+     * @return true if the call has committed
+     */
+    private boolean answer(Procedure.Call call, String result,
+            Set<String> unsure) {
+        String transaction = call.request.transaction;
+        if (unsure == null)
+            return false;
+        this.calls.remove(transaction);
+        if (!unsure.isEmpty())
+            return true;
+        if (result.length() > 0)
+            System.out.println(result);
+        System.out.println("transaction [" + transaction
+                + "] have success comitted");
+        this.respond(call.request, ResponseType.COMMITTED,
+                result.length() > 0 ? result : null);
         return true;
     }
 
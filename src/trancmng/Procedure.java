@@ -0,0 +1,230 @@
+package trancmng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import entity.Request;
+import entity.RequestType;
+
+/**
+ * A transaction template, registered once by a DEFINE request and run by CALL
+ * requests inside {@link ImpTransactionManager}. <br>
+ * <br>
+ * The definition is the parameters, then the statements separated by ";":
+ *
+ * <pre>
+ * define(transfer, a, b, n): r(a); w(a, a - n); w(b, b + n)
+ * </pre>
+ *
+ * r(x) reads x, its value is returned to the client. w(x, e) writes the value
+ * of e to x, where e adds and subtracts integers, parameters and resources. A
+ * parameter given an integer stands for that integer, otherwise for the
+ * resource it names, and a resource in an expression stands for its value.
+ * Values are read once, before the statements run, and a statement sees the
+ * writes of the statements before it. So the read and write sets of a call
+ * are known from its arguments. The transaction ends after the last
+ * statement.
+ *
+ */
+public class Procedure {
+
+    private static final Pattern READ = Pattern.compile("r\\((\\w+)\\)");
+
+    private static final Pattern WRITE = Pattern
+            .compile("w\\((\\w+),([+-]?\\w+(?:[+-]\\w+)*)\\)");
+
+    private static final Pattern TERM = Pattern.compile("([+-]?)(\\w+)");
+
+    private static final String NUMBER = "-?\\d{1,18}";
+
+    private static class Statement {
+        /**
+         * parameter or resource read or written
+         */
+        final String target;
+
+        /**
+         * names or integers added, null for a read
+         */
+        final List<String> terms;
+
+        /**
+         * whether each term is subtracted
+         */
+        final List<Boolean> negative;
+
+        Statement(String target, List<String> terms, List<Boolean> negative) {
+            this.target = target;
+            this.terms = terms;
+            this.negative = negative;
+        }
+    }
+
+    public final String name;
+
+    private final List<String> parameters;
+
+    private final List<Statement> statements;
+
+    /**
+     * @param name
+     * @param definition
+     *            the parameters separated by ",", then ":" and the
+     *            statements, without spaces
+     * @throws IllegalArgumentException
+     *             if the definition is not valid
+     */
+    public Procedure(String name, String definition) {
+        this.name = name;
+        int colon = definition.indexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("procedure [" + name
+                    + "] has no statement");
+        String head = definition.substring(0, colon);
+        this.parameters = head.isEmpty() ? Collections.<String> emptyList()
+                : Arrays.asList(head.split(","));
+        if (new LinkedHashSet<String>(parameters).size() != parameters.size())
+            throw new IllegalArgumentException("procedure [" + name
+                    + "] has the same parameter twice");
+
+        this.statements = new ArrayList<Statement>();
+        for (String text : definition.substring(colon + 1).split(";")) {
+            if (text.isEmpty())
+                continue;
+            Matcher read = READ.matcher(text);
+            Matcher write = WRITE.matcher(text);
+            if (read.matches()) {
+                statements.add(new Statement(read.group(1), null, null));
+            } else if (write.matches()) {
+                List<String> terms = new ArrayList<String>();
+                List<Boolean> negative = new ArrayList<Boolean>();
+                Matcher term = TERM.matcher(write.group(2));
+                while (term.find()) {
+                    terms.add(term.group(2));
+                    negative.add(term.group(1).equals("-"));
+                }
+                statements.add(new Statement(write.group(1), terms, negative));
+            } else {
+                throw new IllegalArgumentException("procedure [" + name
+                        + "] has an invalid statement : " + text);
+            }
+        }
+        if (statements.isEmpty())
+            throw new IllegalArgumentException("procedure [" + name
+                    + "] has no statement");
+    }
+
+    /**
+     * Bind the arguments of a CALL request, its value is the arguments
+     * separated by ","
+     *
+     * @param request
+     * @return the call
+     * @throws IllegalArgumentException
+     *             if the arguments do not fit
+     */
+    public Call bind(Request request) {
+        List<String> arguments = request.value == null
+                || request.value.isEmpty() ? Collections.<String> emptyList()
+                : Arrays.asList(request.value.split(","));
+        if (arguments.size() != parameters.size())
+            throw new IllegalArgumentException("procedure [" + name
+                    + "] takes " + parameters.size() + " arguments");
+        return new Call(request, arguments);
+    }
+
+    /**
+     * A procedure with its arguments
+     */
+    public class Call {
+
+        public final Request request;
+
+        /**
+         * resources read, in order
+         */
+        public final Set<String> reads = new LinkedHashSet<String>();
+
+        /**
+         * resources written, in order
+         */
+        public final Set<String> writes = new LinkedHashSet<String>();
+
+        private final List<String> arguments;
+
+        private Call(Request request, List<String> arguments) {
+            this.request = request;
+            this.arguments = arguments;
+            for (Statement statement : statements) {
+                String target = this.resource(statement.target);
+                if (statement.terms == null) {
+                    reads.add(target);
+                    continue;
+                }
+                for (String term : statement.terms) {
+                    String bound = this.bound(term);
+                    if (!bound.matches(NUMBER))
+                        reads.add(bound);
+                }
+                writes.add(target);
+            }
+        }
+
+        /**
+         * Run the statements
+         *
+         * @param values
+         *            the values of the resources read, updated by the writes
+         * @param writing
+         *            receives the write requests, in order
+         * @return the values of the reads, for the client
+         */
+        public String run(Map<String, Long> values, List<Request> writing) {
+            StringBuffer result = new StringBuffer();
+            for (Statement statement : statements) {
+                String target = this.resource(statement.target);
+                if (statement.terms == null) {
+                    if (result.length() > 0)
+                        result.append(", ");
+                    result.append(target + ": " + values.get(target));
+                    continue;
+                }
+                long value = 0;
+                for (int i = 0; i < statement.terms.size(); i++) {
+                    String bound = this.bound(statement.terms.get(i));
+                    long term = bound.matches(NUMBER) ? Long.parseLong(bound)
+                            : values.get(bound);
+                    value += statement.negative.get(i) ? -term : term;
+                }
+                values.put(target, value);
+                writing.add(new Request(target, request.transaction,
+                        RequestType.WRITE, String.valueOf(value)));
+            }
+            return result.toString();
+        }
+
+        /**
+         * @param name
+         * @return the argument of the parameter, or the name itself
+         */
+        private String bound(String name) {
+            int index = parameters.indexOf(name);
+            return index < 0 ? name : arguments.get(index);
+        }
+
+        private String resource(String name) {
+            String bound = this.bound(name);
+            if (bound.matches(NUMBER))
+                throw new IllegalArgumentException("procedure [" + Procedure.this.name
+                        + "] reads or writes [" + bound + "], not a resource");
+            return bound;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package trancmng;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Values read by read only transactions in {@link ImpTransactionManager}, by
+ * resource and commit epoch. <br>
+ * <br>
+ * The epoch of a read only transaction is the commit time stamp of the last
+ * read write transaction committed before it began. Transactions of the same
+ * epoch see the same snapshot, so a value read by one of them is the value
+ * for all the others. The time stamps of the commits are kept while a
+ * running read only transaction may need them. The transactions begun before
+ * the cache was created have no known epoch, their reads are not kept. <br>
+ * <br>
+ * At most the given number of values are kept, the least recently used one is
+ * dropped first.
+ *
+ */
+class ReadCache {
+
+    /**
+     * commit time stamps of the read write transactions still needed to find
+     * an epoch
+     */
+    private final TreeSet<Integer> commits;
+
+    /**
+     * value by "resource@epoch", in access order
+     */
+    private final LinkedHashMap<String, String> values;
+
+    private int hits;
+
+    /**
+     * @param capacity
+     *            number of values kept
+     * @param start
+     *            a time stamp taken when the cache is created, the first
+     *            epoch
+     */
+    ReadCache(final int capacity, int start) {
+        this.commits = new TreeSet<Integer>();
+        this.commits.add(start);
+        this.values = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return this.size() > capacity;
+            }
+        };
+        this.hits = 0;
+    }
+
+    /**
+     * A read write transaction has committed
+     *
+     * @param commitTime
+     * @param watermark
+     *            oldest begin time stamp of the running read only
+     *            transactions, Integer.MAX_VALUE if there is none
+     */
+    void committed(int commitTime, int watermark) {
+        commits.add(commitTime);
+        // the oldest reader needs the last commit before it, the ones
+        // beginning later need the commits after
+        Integer oldest = commits.lower(watermark);
+        if (oldest != null)
+            commits.headSet(oldest).clear();
+    }
+
+    /**
+     * @param resource
+     * @param begin
+     *            begin time stamp of a running read only transaction
+     * @return the value seen by the transaction, null if not kept
+     */
+    String get(String resource, int begin) {
+        String key = key(resource, begin);
+        if (key == null)
+            return null;
+        String value = values.get(key);
+        if (value != null)
+            hits++;
+        return value;
+    }
+
+    /**
+     * Keep the value seen by a running read only transaction
+     *
+     * @param resource
+     * @param begin
+     * @param value
+     */
+    void put(String resource, int begin, String value) {
+        String key = key(resource, begin);
+        if (key != null)
+            values.put(key, value);
+    }
+
+    /**
+     * @return number of reads answered by the cache
+     */
+    int hits() {
+        return hits;
+    }
+
+    /**
+     * @return the key of the value, null if the epoch is not known
+     */
+    private String key(String resource, int begin) {
+        Integer epoch = commits.lower(begin);
+        return epoch == null ? null : resource + '@' + epoch;
+    }
+}
@@ -0,0 +1,18 @@
+package trancmng;
+
+import entity.Response;
+
+/**
+ * Receives the response of each request handled by the transaction manager.
+ * It is called on the thread handling the requests, and should not block.
+ * 
+ */
+public interface ResponseListener {
+
+    /**
+     * Called once for each request when it is finally handled
+     * 
+     * @param response
+     */
+    public void onResponse(Response response);
+}
@@ -0,0 +1,235 @@
+package trancmng;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import entity.Request;
+import entity.RequestType;
+
+/**
+ * The waiting list of {@link ImpTransactionManager}. Requests are retried by
+ * rank of their transaction, and counted by resource. <br>
+ * <br>
+ * The rank is the time stamp of the transaction advanced for its priority, see
+ * {@link trancmng.entity.transactionEntity#rank}. Wait-die uses the same
+ * order, so a request retried first is also one that may wait for the others.
+ * Requests of the same rank, as the requests of one transaction, are retried
+ * in the order they first came. <br>
+ * <br>
+ * A request keeps its place until {@link #forget(Request)}, when it has left
+ * the waiting list for good, so a request put back after a retry is not
+ * overtaken by the ones that came after it.
+ * 
+ */
+class WaitingList extends AbstractQueue<Request> {
+
+    private static class Entry implements Comparable<Entry> {
+        final Request request;
+
+        final long rank;
+
+        final long sequence;
+
+        /**
+         * when the request first went to the waiting list, in nanoseconds
+         */
+        final long since;
+
+        Entry(Request request, long rank, long sequence, long since) {
+            this.request = request;
+            this.rank = rank;
+            this.sequence = sequence;
+            this.since = since;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (rank != other.rank)
+                return rank < other.rank ? -1 : 1;
+            return sequence < other.sequence ? -1
+                    : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+    private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+
+    /**
+     * the entries of the requests that have not left for good
+     */
+    private final Map<Request, Entry> known = new IdentityHashMap<Request, Entry>();
+
+    /**
+     * number of waiting requests of each resource, resources without waiting
+     * request are not in the map
+     */
+    private final Map<String, Integer> perResource = new HashMap<String, Integer>();
+
+    private long sequence = 0;
+
+    /**
+     * number of waiting scans
+     */
+    private int scans = 0;
+
+    /**
+     * @param resource
+     * @return number of requests waiting on the resource
+     */
+    public int queuedOn(String resource) {
+        Integer count = perResource.get(resource);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return number of scans waiting, they are counted on their first
+     *         resource only
+     */
+    public int scans() {
+        return scans;
+    }
+
+    /**
+     * Put a request in the waiting list
+     * 
+     * @param request
+     * @param rank
+     *            rank of its transaction, smaller first
+     */
+    public void add(Request request, long rank) {
+        Entry entry = known.get(request);
+        if (entry == null) {
+            entry = new Entry(request, rank, sequence++, System.nanoTime());
+            known.put(request, entry);
+        }
+        entries.add(entry);
+        this.count(request, 1);
+    }
+
+    /**
+     * Forget the request, it has left the waiting list for good
+     * 
+     * @param request
+     * @return nanoseconds since it first went to the waiting list, -1 if it
+     *         never did
+     */
+    public long forget(Request request) {
+        Entry entry = known.remove(request);
+        return entry == null ? -1 : System.nanoTime() - entry.since;
+    }
+
+    /**
+     * Take the requests of a transaction out of the waiting list. They are
+     * not forgotten.
+     * 
+     * @param transaction
+     * @return the requests, in the order they came
+     */
+    public List<Request> remove(String transaction) {
+        List<Entry> removed = new ArrayList<Entry>();
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (transaction.equals(entry.request.transaction)) {
+                it.remove();
+                this.count(entry.request, -1);
+                removed.add(entry);
+            }
+        }
+        Collections.sort(removed);
+        List<Request> result = new ArrayList<Request>(removed.size());
+        for (Entry entry : removed)
+            result.add(entry.request);
+        return result;
+    }
+
+    /**
+     * Take all requests out of the waiting list, in the order to retry them
+     * 
+     * @return the requests
+     */
+    public Queue<Request> drain() {
+        Queue<Request> result = new LinkedList<Request>();
+        Request request;
+        while ((request = this.poll()) != null)
+            result.add(request);
+        return result;
+    }
+
+    /**
+     * Put a request of rank 0, before the requests of transactions
+     */
+    @Override
+    public boolean offer(Request request) {
+        this.add(request, 0);
+        return true;
+    }
+
+    @Override
+    public Request poll() {
+        Entry entry = entries.poll();
+        if (entry == null)
+            return null;
+        this.count(entry.request, -1);
+        return entry.request;
+    }
+
+    @Override
+    public Request peek() {
+        Entry entry = entries.peek();
+        return entry == null ? null : entry.request;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Iterate in no particular order
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        final Iterator<Entry> it = entries.iterator();
+        return new Iterator<Request>() {
+            private Request last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Request next() {
+                last = it.next().request;
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                count(last, -1);
+            }
+        };
+    }
+
+    private void count(Request request, int delta) {
+        if (request.requestType == RequestType.SCAN)
+            scans += delta;
+        if (request.resource == null)
+            return;
+        int count = this.queuedOn(request.resource) + delta;
+        if (count == 0)
+            perResource.remove(request.resource);
+        else
+            perResource.put(request.resource, count);
+    }
+}
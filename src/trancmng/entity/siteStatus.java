@@ -0,0 +1,23 @@
+package trancmng.entity;
+/**
+ * Status of a site seen by the failure detector
+ * 
+ */
+public enum siteStatus {
+    /**
+     * answers heartbeats and is running
+     */
+    Up,
+    /**
+     * missed some heartbeats, not long enough to be down
+     */
+    Suspected,
+    /**
+     * has not answered heartbeats for too long
+     */
+    Down,
+    /**
+     * answers heartbeats but is not running
+     */
+    Failed
+}
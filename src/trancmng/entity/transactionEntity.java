@@ -1,10 +1,15 @@
 package trancmng.entity;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import site.Site;
 
+import entity.Request;
 import entity.TimeStamp;
 
 /**
@@ -24,6 +29,32 @@ public class transactionEntity {
      */
     public final Integer timestamp;
     
+    /**
+     * the priority of the transaction, given at begin and clamped to
+     * -MAX_PRIORITY .. MAX_PRIORITY
+     */
+    public final int priority;
+    
+    /**
+     * time stamps one level of priority is worth
+     */
+    public static final int PRIORITY_AGING = 100;
+    
+    /**
+     * largest priority, so a transaction is never ranked more than
+     * MAX_PRIORITY * PRIORITY_AGING time stamps ahead of its own
+     */
+    public static final int MAX_PRIORITY = 10;
+    
+    /**
+     * the time stamp advanced by PRIORITY_AGING for each level of priority.
+     * A smaller rank is older for wait-die, and first in the waiting list.
+     * Transactions that begin later get larger ranks, so a transaction is
+     * overtaken only by the ones that begin less than
+     * 2 * MAX_PRIORITY * PRIORITY_AGING time stamps after it.
+     */
+    public final long rank;
+    
     /**
      * if the transaction is read only
      */
@@ -35,9 +66,33 @@ public class transactionEntity {
     public tranStatus status;
     
     /**
-     * transaction log
+     * transaction log, the reads and writes done, in order. A read is logged
+     * with the value it returned as its value. Only kept when the transaction
+     * can be restarted.
+     */
+    public List<Request> log;
+    
+    /**
+     * how many times the transaction has been restarted
+     */
+    public final int restarts;
+    
+    /**
+     * rounds left before the restart, while the transaction waits for it
      */
-    public StringBuffer log;
+    public int backoff;
+    
+    /**
+     * the values of the resources the transaction has read or written. It
+     * keeps its locks on them until it ends, so a read of one of them is
+     * answered from here.
+     */
+    public Map<String, Long> values;
+    
+    /**
+     * the resources the transaction has written
+     */
+    public Set<String> written;
     
     /**
      * the reference of the sites that the transaction have visited.
@@ -46,15 +101,57 @@ public class transactionEntity {
     public Set<Site> visitedSites;
     
     public transactionEntity(String name,boolean readonly) {
+        this(name, readonly, 0);
+    }
+    
+    public transactionEntity(String name,boolean readonly, int priority) {
         this.name = name;
+        this.priority = Math.max(-MAX_PRIORITY,
+                Math.min(MAX_PRIORITY, priority));
         this.timestamp = TimeStamp.getit();
+        this.rank = (long) this.timestamp - (long) this.priority
+                * PRIORITY_AGING;
+        this.restarts = 0;
         status = tranStatus.Running;
         this.readonly = readonly;
-        this.log = new StringBuffer();
+        this.log = new LinkedList<Request>();
+        this.values = new HashMap<String, Long>();
+        this.written = new HashSet<String>();
+        this.visitedSites = new HashSet<Site>();
+    }
+    
+    /**
+     * The restart of an aborted transaction. It keeps the time stamp and the
+     * priority, so it gets older than the transactions that killed it.
+     * 
+     * @param aborted
+     */
+    public transactionEntity(transactionEntity aborted) {
+        this.name = aborted.name;
+        this.priority = aborted.priority;
+        this.timestamp = aborted.timestamp;
+        this.rank = aborted.rank;
+        this.restarts = aborted.restarts + 1;
+        status = tranStatus.Running;
+        this.readonly = aborted.readonly;
+        this.log = new LinkedList<Request>();
+        this.values = new HashMap<String, Long>();
+        this.written = new HashSet<String>();
         this.visitedSites = new HashSet<Site>();
     }
     
     
+    /**
+     * @param other
+     * @return if this transaction is older than the other one for wait-die,
+     *         by rank then by time stamp
+     */
+    public boolean isOlderThan(transactionEntity other) {
+        if (this.rank != other.rank)
+            return this.rank < other.rank;
+        return this.timestamp < other.timestamp;
+    }
+    
     /**
      * @return if the transaction is read only
      */